@@ -0,0 +1,110 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ Realistic inputs of the benchmarks: a configuration as setConfiguration stores it, a query
+ message and a location fix.
+ */
+final class BenchData
+{
+    static final String MEMBER = "Toni";
+    static final long NOW = 1720000000000L;
+
+    private BenchData() {
+    }
+
+    static String config(int teamCount) throws JSONException
+    {
+        return config(teamCount, "https://{host}", null, true).toString();
+    }
+
+    // With schedules every third team has a weekly schedule, every fifth a date range.
+    // Host null = four example hosts.
+    static JSONObject config(int teamCount, String baseUrl, String host, boolean schedules) throws JSONException
+    {
+        JSONObject config = new JSONObject();
+        config.put("member", MEMBER);
+        config.put("messageUrl", baseUrl + "/message");
+        config.put("pushUrl", baseUrl + "/push");
+        config.put("uuid", "6f1c2b7e-9a51-4d3e-8c2f-0b1d5e7a9c31");
+        config.put("token", "fcm:APA91bH0k9mZ3xQv7yL2sN8tR4wE6uI1oP5aS3dF7gH9jK2lZ4xC6vB8nM0qW3eR5tY7uI9oP1aS3dF5gH7jK9lZ");
+        JSONObject teams = new JSONObject();
+        JSONObject cTeams = new JSONObject();
+        for (int i = 0; i < teamCount; i++) {
+            String name = "team" + i;
+            JSONObject team = new JSONObject();
+            team.put("name", name);
+            team.put("password", "secret" + i);
+            team.put("host", host != null ? host : "server" + (i % 4) + ".example.com");
+            team.put("s", "s" + i);
+            teams.put(name, team);
+            JSONObject cTeam = new JSONObject();
+            cTeam.put("icon", "icon" + (i % 10));
+            if (schedules && i % 3 == 0) {
+                cTeam.put("repeat", "12345");
+                cTeam.put("startTime", 8 * 60);
+                cTeam.put("endTime", 17 * 60);
+            }
+            if (schedules && i % 5 == 0) {
+                cTeam.put("startDate", NOW - 30 * 24 * 3600 * 1000L);
+                cTeam.put("endDate", NOW + 30 * 24 * 3600 * 1000L);
+            }
+            cTeams.put(name, cTeam);
+        }
+        config.put("teams", teams);
+        config.put("cTeams", cTeams);
+        return config;
+    }
+
+    static JSONObject query(int team) throws JSONException
+    {
+        JSONObject query = new JSONObject();
+        query.put("memberName", "Liisa");
+        query.put("teamId", "team" + team);
+        query.put("messageType", "LOCATE");
+        query.put("accuracy", 50);
+        query.put("target", "");
+        return query;
+    }
+
+    static Fix fix()
+    {
+        return new Fix(60.1699123456, 24.9384234567, 12.7f, 23.4, 187.2f, 1.4f, NOW - 2300, 2300, false, false);
+    }
+
+    // Message template of MessageServer for a POSITION
+    static Map<String, Object> positionFields()
+    {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("memberName", MEMBER);
+        fields.put("teamId", "team1");
+        fields.put("icon", "icon1");
+        fields.put("messageType", "POSITION");
+        return fields;
+    }
+}
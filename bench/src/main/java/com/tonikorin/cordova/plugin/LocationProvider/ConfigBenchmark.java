@@ -0,0 +1,85 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ setConfiguration compile and the per query team lookup with the schedule check
+ (TeamConfig.isLocationBlocked before the compiled configuration).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark
+{
+    @Param({"10", "100"})
+    public int teams;
+
+    private String json;
+    private ServiceConfig config;
+    private String[] teamIds;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        json = BenchData.config(teams);
+        config = ServiceConfig.compile(json);
+        teamIds = new String[teams];
+        for (int i = 0; i < teams; i++) teamIds[i] = "team" + i;
+    }
+
+    @Benchmark
+    public ServiceConfig compile() throws Exception
+    {
+        return ServiceConfig.compile(json);
+    }
+
+    // One query per team: lookup, schedule check and message URL
+    @Benchmark
+    public int queryAllTeams()
+    {
+        int blocked = 0;
+        long now = BenchData.NOW;
+        for (String teamId : teamIds) {
+            ServiceConfig.Team team = config.getTeam(teamId);
+            if (team.isBlocked(now)) blocked++;
+            blocked += team.getMessageUrl(config, null).length() & 1;
+            now += 7 * 60 * 1000L;
+        }
+        return blocked;
+    }
+}
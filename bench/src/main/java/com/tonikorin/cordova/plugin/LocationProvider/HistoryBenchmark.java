@@ -0,0 +1,101 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ updateLocateHistory appends and the history reads of the plugin with full ring buffers
+ (200 locate lines and 100 chat messages).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark
+{
+    private HistoryStore history;
+    private String status;
+    private String line;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "lp-bench-" + System.nanoTime());
+        if (!dir.mkdirs()) throw new IllegalStateException("Cannot create " + dir);
+        dir.deleteOnExit();
+        new File(dir, HistoryStore.FILE_NAME).deleteOnExit();
+        history = HistoryStore.open(dir);
+        JSONObject chat = BenchData.query(1);
+        chat.put("messageType", "CHAT");
+        chat.put("content", "Meet at the main entrance at six, I will bring the tickets for everyone");
+        for (int i = 0; i < 100; i++) {
+            chat.put("time", BenchData.NOW + i);
+            history.append(HistoryStore.TYPE_CHAT, chat.toString());
+        }
+        JSONObject updateStatus = new JSONObject();
+        updateStatus.put("member", "Liisa");
+        updateStatus.put("team", "team1");
+        updateStatus.put("date", "2024-07-03 12:34:56");
+        updateStatus.put("target", "");
+        status = updateStatus.toString();
+        line = "Liisa (team1) 2024-07-03 12:34:56\n";
+        for (int i = 0; i < 200; i++) appendLocate();
+    }
+
+    // Status and line of one LOCATE query
+    @Benchmark
+    public void appendLocate()
+    {
+        synchronized (history) {
+            history.append(HistoryStore.TYPE_STATUS, status);
+            history.append(HistoryStore.TYPE_LINE, line);
+        }
+    }
+
+    @Benchmark
+    public List<HistoryStore.Entry> readPage()
+    {
+        return history.readSince(history.getLastSeq() - 50, 50);
+    }
+
+    @Benchmark
+    public List<HistoryStore.Entry> readAll()
+    {
+        return history.readSince(0, 400);
+    }
+}
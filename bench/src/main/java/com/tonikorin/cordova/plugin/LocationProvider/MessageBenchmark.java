@@ -0,0 +1,112 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ POSITION message building and encoding: the JSONObject way of getJsonLocation and MessageServer
+ before the writer as the baseline, MessageWriter in both wire formats and the compact format.
+ Run with -prof gc for the allocation per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark
+{
+    private static final int ROUND6 = 1000000;
+    private Fix fix;
+    private Map<String, Object> fields;
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setup()
+    {
+        fix = BenchData.fix();
+        fields = BenchData.positionFields();
+    }
+
+    @Benchmark
+    public void legacyJson() throws Exception
+    {
+        JSONObject loc = new JSONObject();
+        loc.put("latitude", (double) Math.round(fix.latitude * ROUND6) / ROUND6);
+        loc.put("longitude", (double) Math.round(fix.longitude * ROUND6) / ROUND6);
+        loc.put("accuracy", fix.accuracy);
+        loc.put("altitude", fix.altitude);
+        loc.put("altitudeAccuracy", "-");
+        loc.put("heading", fix.heading);
+        loc.put("speed", fix.speed);
+        loc.put("timestamp", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(fix.time)));
+        loc.put("mTime", fix.time);
+        loc.put("age", fix.age);
+        JSONObject message = new JSONObject();
+        for (Map.Entry<String, Object> field : fields.entrySet()) message.put(field.getKey(), field.getValue());
+        message.put("content", loc.toString());
+        sink.write(message.toString().getBytes("UTF-8"));
+    }
+
+    @Benchmark
+    public void writerString() throws IOException
+    {
+        MessageWriter.get().message(fields, fix, MessageWriter.WIRE_STRING).writeTo(sink);
+    }
+
+    @Benchmark
+    public void writerNested() throws IOException
+    {
+        MessageWriter.get().message(fields, fix, MessageWriter.WIRE_NESTED).writeTo(sink);
+    }
+
+    @Benchmark
+    public void compact() throws IOException
+    {
+        sink.write(CompactCodec.encode("POSITION", fields, fix));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.content.Intent;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ Replays synthetic push intents through LocationService.onHandleIntent against the stand-in
+ server, with the simulated location source of the LocationManager shim. The query types are
+ run one after the other and each gets its own report: throughput, latency percentiles of
+ onHandleIntent, and the messages and bytes the server received.
+
+ Options: --queries 1000 (per type), --threads 8, --teams 20, --types LOCATE,CHAT,OWN,
+ --compact (server announces the compact format), --channel (messages over the persistent
+ channel, the report counts its handshakes as HANDSHAKE), --schedules (team schedules, the queries
+ of blocked teams are answered with ALIVE only, depending on the clock), --config '{"cacheMaxAge":10,...}' (merged into
+ the generated configuration). Location timings: see android.location.LocationManager shim.
+ */
+public final class ReplayHarness
+{
+    private static final String OWN = "OWN"; // own echo: a query sent by this member
+
+    private ReplayHarness() {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int queries = 1000;
+        int threads = 8;
+        int teams = 20;
+        boolean compact = false;
+        boolean schedules = false;
+        boolean channel = false;
+        String[] types = {"LOCATE", "CHAT", OWN};
+        JSONObject overrides = new JSONObject();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--queries")) queries = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--teams")) teams = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--types")) types = args[++i].split(",");
+            else if (args[i].equals("--compact")) compact = true;
+            else if (args[i].equals("--schedules")) schedules = true;
+            else if (args[i].equals("--channel")) channel = true;
+            else if (args[i].equals("--config")) overrides = new JSONObject(args[++i]);
+            else throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+        File dir = new File(System.getProperty("java.io.tmpdir"), "lp-harness-" + System.nanoTime());
+        System.setProperty("lp.filesDir", dir.getPath());
+
+        StandInServer server = new StandInServer(compact);
+        server.start();
+        JSONObject config = BenchData.config(teams, "http://{host}", server.getHost(), schedules);
+        if (channel) {
+            server.startChannel();
+            config.put("channelUrl", server.getChannelUrl());
+        }
+        for (String name : JSONObject.getNames(overrides) == null ? new String[0] : JSONObject.getNames(overrides))
+            config.put(name, overrides.get(name));
+        ServiceConfig.install(ServiceConfig.compile(config.toString()));
+        LocationService service = new LocationService();
+
+        System.out.println(String.format(Locale.ROOT, "%d queries per type, %d threads, %d teams, compact %s, channel %s, server %s",
+                queries, threads, teams, compact, channel, server.getHost()));
+        for (String type : types) {
+            server.takeCounts();
+            long[] latencies = replay(service, type.trim(), queries, threads, teams);
+            long wallMs = latencies[latencies.length - 1];
+            latencies = Arrays.copyOf(latencies, latencies.length - 1);
+            server.awaitQuiet(OWN.equals(type.trim()) ? 6000 : 1000); // own echo refreshes the token 5 sec later
+            report(type.trim(), latencies, wallMs, server.takeCounts());
+        }
+        server.stop();
+        System.exit(0); // service executors are not daemons
+    }
+
+    // Latencies in µs, the last element is the wall time in ms
+    private static long[] replay(final LocationService service, final String type, final int queries, int threads, final int teams)
+            throws InterruptedException
+    {
+        final long[] latencies = new long[queries + 1];
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < queries) {
+                        Intent intent = intent(type, i, teams);
+                        long begin = System.nanoTime();
+                        service.onHandleIntent(intent);
+                        latencies[i] = (System.nanoTime() - begin) / 1000;
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        latencies[queries] = (System.nanoTime() - start) / 1000000;
+        return latencies;
+    }
+
+    private static Intent intent(String type, int i, int teams)
+    {
+        JSONObject data = new JSONObject();
+        try {
+            data.put("teamId", "team" + (i % teams));
+            data.put("memberName", OWN.equals(type) ? BenchData.MEMBER : "Liisa");
+            data.put("messageType", OWN.equals(type) ? "LOCATE" : type);
+            data.put("accuracy", 50);
+            if (type.equals("CHAT")) data.put("content", "Replay chat message " + i);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        Intent intent = new Intent();
+        intent.putExtra("data", data.toString());
+        intent.putExtra("time", String.valueOf(System.currentTimeMillis()));
+        return intent;
+    }
+
+    private static void report(String type, long[] latencies, long wallMs, Map<String, long[]> received)
+    {
+        Arrays.sort(latencies);
+        long bytes = 0;
+        StringBuilder messages = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : received.entrySet()) {
+            bytes += entry.getValue()[1];
+            messages.append(String.format(Locale.ROOT, " %s %d/%d B", entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "%-7s %6d q %8.1f q/s  p50 %7.1f ms  p95 %7.1f ms  p99 %7.1f ms  max %7.1f ms  %8.1f B/q |%s",
+                type, latencies.length, latencies.length * 1000.0 / Math.max(1, wallMs),
+                percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99),
+                latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1000.0,
+                latencies.length == 0 ? 0 : (double) bytes / latencies.length, messages));
+    }
+
+    private static double percentile(long[] sorted, double p)
+    {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1000.0;
+    }
+}
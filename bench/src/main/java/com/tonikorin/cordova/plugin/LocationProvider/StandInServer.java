@@ -0,0 +1,335 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/*
+ Local message and push server for the harness. Every message is decoded (JSON, gzip, batches
+ and the compact format with the reference decoder) and counted per message type with the
+ request body bytes as they came over the wire. Undecodable messages are counted as INVALID
+ and answered with 400.
+
+ startChannel() adds a WebSocket endpoint for the persistent channel (config "channelUrl"):
+ every accepted handshake is counted as HANDSHAKE (a handshake without X-team is refused with
+ 401), every text frame as its message type with the payload bytes. Text frames are acked with
+ {"ack":n} and pings answered, setChannelAcks(false) and dropChannels() simulate a server which
+ stopped answering and a dropped connection.
+ */
+final class StandInServer
+{
+    private final HttpServer server;
+    private final boolean compact;
+    private final Map<String, long[]> types = new TreeMap<String, long[]>(); // messages, bytes
+    private long lastRequest = System.nanoTime();
+    private ServerSocket channelServer = null;
+    private final ExecutorService channelThreads = Executors.newCachedThreadPool();
+    private final Set<Socket> channelSockets = new HashSet<Socket>();
+    private volatile boolean channelAcks = true;
+
+    StandInServer(boolean compact) throws IOException
+    {
+        this.compact = compact;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                receive(exchange);
+            }
+        });
+    }
+
+    void start()
+    {
+        server.start();
+    }
+
+    void stop()
+    {
+        server.stop(0);
+        if (channelServer != null) {
+            try {
+                channelServer.close();
+            } catch (IOException e) {
+                // stopping anyway
+            }
+            dropChannels(); // blocked in read, not interrupted by shutdownNow
+        }
+        channelThreads.shutdownNow();
+    }
+
+    void startChannel() throws IOException
+    {
+        channelServer = new ServerSocket(0, 64, InetAddress.getByName("127.0.0.1"));
+        channelThreads.execute(new Runnable() {
+            public void run() {
+                while (!channelServer.isClosed()) {
+                    try {
+                        final Socket socket = channelServer.accept();
+                        channelThreads.execute(new Runnable() {
+                            public void run() {
+                                serveChannel(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        return; // closed
+                    }
+                }
+            }
+        });
+    }
+
+    void setChannelAcks(boolean acks)
+    {
+        channelAcks = acks;
+    }
+
+    // Closes the open channel connections without a close frame
+    void dropChannels()
+    {
+        List<Socket> sockets;
+        synchronized (channelSockets) {
+            sockets = new ArrayList<Socket>(channelSockets);
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
+    }
+
+    String getChannelUrl()
+    {
+        return "ws://127.0.0.1:" + channelServer.getLocalPort() + "/channel";
+    }
+
+    String getHost()
+    {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    synchronized Map<String, long[]> takeCounts()
+    {
+        Map<String, long[]> counts = new TreeMap<String, long[]>(types);
+        types.clear();
+        return counts;
+    }
+
+    // Waits until no request has arrived for quietMs
+    void awaitQuiet(long quietMs) throws InterruptedException
+    {
+        while (true) {
+            long idle;
+            synchronized (this) {
+                idle = (System.nanoTime() - lastRequest) / 1000000;
+            }
+            if (idle >= quietMs) return;
+            Thread.sleep(Math.max(10, quietMs - idle));
+        }
+    }
+
+    private void receive(HttpExchange exchange) throws IOException
+    {
+        byte[] body = readAll(exchange.getRequestBody());
+        int status = 200;
+        try {
+            byte[] plain = body;
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+                plain = readAll(new GZIPInputStream(new java.io.ByteArrayInputStream(body)));
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType != null && contentType.startsWith(CompactCodec.CONTENT_TYPE)) {
+                count(getType(CompactCodec.decode(plain)), body.length);
+            } else {
+                String text = new String(plain, "UTF-8");
+                if (text.startsWith("[")) { // batch, the bytes are counted for the first
+                    JSONArray batch = new JSONArray(text);
+                    for (int i = 0; i < batch.length(); i++)
+                        count(getType(CompactCodec.decodeJson(batch.getJSONObject(i).toString())), i == 0 ? body.length : 0);
+                } else {
+                    count(getType(CompactCodec.decodeJson(text)), body.length);
+                }
+            }
+        } catch (Exception e) {
+            count("INVALID", body.length);
+            status = 400;
+        }
+        if (compact)
+            exchange.getResponseHeaders().add("X-version", String.valueOf(CompactCodec.MIN_SERVER_VERSION));
+        byte[] response = "{}".getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, response.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    private void serveChannel(Socket socket)
+    {
+        synchronized (channelSockets) {
+            channelSockets.add(socket);
+        }
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            int requestBytes = 0;
+            String key = null;
+            String team = null;
+            for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                requestBytes += line.length() + 2;
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim();
+                if (name.equalsIgnoreCase("Sec-WebSocket-Key")) key = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("X-team")) team = line.substring(colon + 1).trim();
+            }
+            if (key == null || team == null) {
+                out.write("HTTP/1.1 401 Unauthorized\r\nContent-Length: 0\r\n\r\n".getBytes("UTF-8"));
+                out.flush();
+                return;
+            }
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("UTF-8"));
+            out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + Base64.getEncoder().encodeToString(digest) + "\r\n\r\n").getBytes("UTF-8"));
+            out.flush();
+            count("HANDSHAKE", requestBytes + 2);
+            long messages = 0;
+            while (true) {
+                int b0 = in.read();
+                int b1 = in.read();
+                if (b0 < 0 || b1 < 0) return;
+                long length = b1 & 0x7f;
+                if (length == 126) length = (in.read() << 8) | in.read();
+                else if (length == 127) for (int i = 0; i < 8; i++) length = (length << 8) | in.read();
+                byte[] mask = new byte[4];
+                if ((b1 & 0x80) != 0) readFully(in, mask);
+                byte[] payload = new byte[(int) length];
+                readFully(in, payload);
+                for (int i = 0; i < payload.length; i++) payload[i] ^= mask[i & 3];
+                int opcode = b0 & 0x0f;
+                if (opcode == 8) { // close
+                    out.write(new byte[]{(byte) 0x88, 0});
+                    return;
+                }
+                if (opcode == 9 && channelAcks) writeFrame(out, 10, payload); // pong
+                if (opcode != 1) continue;
+                try {
+                    count(getType(CompactCodec.decodeJson(new String(payload, "UTF-8"))), payload.length);
+                } catch (Exception e) {
+                    count("INVALID", payload.length);
+                }
+                messages++;
+                if (channelAcks) writeFrame(out, 1, ("{\"ack\":" + messages + "}").getBytes("UTF-8"));
+            }
+        } catch (Exception e) {
+            // client went away
+        } finally {
+            synchronized (channelSockets) {
+                channelSockets.remove(socket);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
+    }
+
+    // Server frames are not masked, payloads here are short
+    private static void writeFrame(OutputStream out, int opcode, byte[] payload) throws IOException
+    {
+        out.write(0x80 | opcode);
+        out.write(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') line.append((char) c);
+        }
+        if (c == -1) throw new IOException("end of stream");
+        return line.toString();
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException
+    {
+        int n = 0;
+        while (n < buffer.length) {
+            int read = in.read(buffer, n, buffer.length - n);
+            if (read == -1) throw new IOException("end of stream");
+            n += read;
+        }
+    }
+
+    private static String getType(JSONObject message)
+    {
+        return message.optString("messageType", "TOKEN"); // push server messages have no type
+    }
+
+    private synchronized void count(String type, long bytes)
+    {
+        long[] count = types.get(type);
+        if (count == null) types.put(type, count = new long[2]);
+        count[0]++;
+        count[1] += bytes;
+        lastRequest = System.nanoTime();
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = is.read(buffer)) != -1) bytes.write(buffer, 0, n);
+        is.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+
+public abstract class Service extends Context
+{
+    public static final int START_NOT_STICKY = 2;
+
+    public abstract IBinder onBind(Intent intent);
+
+    public int onStartCommand(Intent intent, int flags, int startId)
+    {
+        return START_NOT_STICKY;
+    }
+
+    public final void stopSelf(int startId) {
+    }
+
+    public final void startForeground(int id, Notification notification) {
+    }
+
+    public final void startForeground(int id, Notification notification, int type) {
+    }
+}
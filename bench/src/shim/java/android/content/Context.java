@@ -0,0 +1,159 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package android.content;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.app.NotificationManager;
+import android.app.job.JobScheduler;
+import android.hardware.SensorManager;
+import android.location.LocationManager;
+import android.net.ConnectivityManager;
+import android.os.PowerManager;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ JVM Context of the harness: one simulated system service of each kind, in-memory shared
+ preferences and the files directory of the system property lp.filesDir.
+ */
+public abstract class Context
+{
+    public static final String LOCATION_SERVICE = "location";
+    public static final String POWER_SERVICE = "power";
+    public static final String CONNECTIVITY_SERVICE = "connectivity";
+    public static final String NOTIFICATION_SERVICE = "notification";
+    public static final String JOB_SCHEDULER_SERVICE = "jobscheduler";
+    public static final String SENSOR_SERVICE = "sensor";
+    public static final int MODE_PRIVATE = 0;
+
+    private static final Map<String, Object> services = new HashMap<String, Object>();
+    private static final Map<String, SharedPreferences> preferences = new HashMap<String, SharedPreferences>();
+
+    static {
+        services.put(LOCATION_SERVICE, new LocationManager());
+        services.put(POWER_SERVICE, new PowerManager());
+        services.put(CONNECTIVITY_SERVICE, new ConnectivityManager());
+        services.put(NOTIFICATION_SERVICE, new NotificationManager());
+        services.put(JOB_SCHEDULER_SERVICE, new JobScheduler());
+        services.put(SENSOR_SERVICE, new SensorManager());
+    }
+
+    public Object getSystemService(String name)
+    {
+        return services.get(name);
+    }
+
+    public Context getApplicationContext()
+    {
+        return this;
+    }
+
+    public SharedPreferences getSharedPreferences(String name, int mode)
+    {
+        synchronized (preferences) {
+            SharedPreferences sp = preferences.get(name);
+            if (sp == null) preferences.put(name, sp = new MemoryPreferences());
+            return sp;
+        }
+    }
+
+    public File getFilesDir()
+    {
+        File dir = new File(System.getProperty("lp.filesDir", System.getProperty("java.io.tmpdir")));
+        dir.mkdirs();
+        return dir;
+    }
+
+    public String getPackageName()
+    {
+        return "com.tonikorin.harness";
+    }
+
+    public PackageManager getPackageManager()
+    {
+        return new PackageManager();
+    }
+
+    public ApplicationInfo getApplicationInfo()
+    {
+        return new ApplicationInfo();
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter)
+    {
+        return null; // no battery state, as on a device without the sticky broadcast
+    }
+
+    public ComponentName startService(Intent intent)
+    {
+        return null;
+    }
+
+    private static class MemoryPreferences implements SharedPreferences
+    {
+        private final Map<String, Object> values = new HashMap<String, Object>();
+
+        public synchronized String getString(String key, String defValue)
+        {
+            Object value = values.get(key);
+            return value instanceof String ? (String) value : defValue;
+        }
+
+        public synchronized long getLong(String key, long defValue)
+        {
+            Object value = values.get(key);
+            return value instanceof Long ? (Long) value : defValue;
+        }
+
+        public synchronized Map<String, ?> getAll()
+        {
+            return new HashMap<String, Object>(values);
+        }
+
+        public Editor edit()
+        {
+            final Map<String, Object> changes = new HashMap<String, Object>();
+            return new Editor() {
+                public Editor putString(String key, String value) { changes.put(key, value); return this;}
+
+                public Editor putLong(String key, long value) { changes.put(key, value); return this;}
+
+                public Editor remove(String key) { changes.put(key, null); return this;}
+
+                public Editor clear() { synchronized (MemoryPreferences.this) { values.clear(); } return this;}
+
+                public boolean commit() { apply(); return true;}
+
+                public void apply() {
+                    synchronized (MemoryPreferences.this) {
+                        for (Map.Entry<String, Object> change : changes.entrySet()) {
+                            if (change.getValue() == null) values.remove(change.getKey());
+                            else values.put(change.getKey(), change.getValue());
+                        }
+                    }
+                }
+            };
+        }
+    }
+}
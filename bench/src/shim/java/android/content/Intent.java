@@ -0,0 +1,50 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package android.content;
+
+import android.os.Bundle;
+
+public class Intent
+{
+    public static final String ACTION_BATTERY_CHANGED = "android.intent.action.BATTERY_CHANGED";
+    private final Bundle extras = new Bundle();
+
+    public Intent putExtra(String key, String value)
+    {
+        extras.putString(key, value);
+        return this;
+    }
+
+    public Intent setClassName(Context context, String className)
+    {
+        return this;
+    }
+
+    public Bundle getExtras()
+    {
+        return extras;
+    }
+
+    public int getIntExtra(String key, int defValue)
+    {
+        return defValue;
+    }
+}
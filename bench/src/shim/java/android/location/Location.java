@@ -0,0 +1,88 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package android.location;
+
+import android.os.SystemClock;
+
+public class Location
+{
+    private final String provider;
+    private double latitude;
+    private double longitude;
+    private float accuracy;
+    private double altitude;
+    private float bearing;
+    private float speed;
+    private long time;
+    private long elapsedRealtimeNanos;
+
+    public Location(String provider)
+    {
+        this.provider = provider;
+        this.time = System.currentTimeMillis();
+        this.elapsedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    public String getProvider() { return provider;}
+
+    public double getLatitude() { return latitude;}
+
+    public void setLatitude(double latitude) { this.latitude = latitude;}
+
+    public double getLongitude() { return longitude;}
+
+    public void setLongitude(double longitude) { this.longitude = longitude;}
+
+    public float getAccuracy() { return accuracy;}
+
+    public boolean hasAccuracy() { return accuracy > 0;}
+
+    public void setAccuracy(float accuracy) { this.accuracy = accuracy;}
+
+    public double getAltitude() { return altitude;}
+
+    public void setAltitude(double altitude) { this.altitude = altitude;}
+
+    public float getBearing() { return bearing;}
+
+    public void setBearing(float bearing) { this.bearing = bearing;}
+
+    public float getSpeed() { return speed;}
+
+    public void setSpeed(float speed) { this.speed = speed;}
+
+    public long getTime() { return time;}
+
+    public void setTime(long time) { this.time = time;}
+
+    public long getElapsedRealtimeNanos() { return elapsedRealtimeNanos;}
+
+    public void setElapsedRealtimeNanos(long nanos) { this.elapsedRealtimeNanos = nanos;}
+
+    public float distanceTo(Location dest)
+    {
+        double dLat = Math.toRadians(dest.latitude - latitude);
+        double dLon = Math.toRadians(dest.longitude - longitude);
+        double h = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(latitude))
+                * Math.cos(Math.toRadians(dest.latitude)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return (float) (2 * 6371000.0 * Math.asin(Math.min(1, Math.sqrt(h))));
+    }
+}
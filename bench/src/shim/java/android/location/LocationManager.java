@@ -0,0 +1,103 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package android.location;
+
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Simulated location source. A registered provider reports its first fix after the time to first
+ fix and then a fix every interval, the accuracy improves by one step per fix down to the best
+ accuracy. The fixes are delivered in the thread of the Handler looper as on Android.
+
+ System properties (ms, m): lp.gps.ttff 1500, lp.gps.interval 500, lp.gps.accuracy 40..6,
+ lp.network.ttff 300, lp.network.interval 1000, lp.network.accuracy 120..80, the passive
+ provider has the network defaults (lp.passive.*)
+ */
+public class LocationManager
+{
+    public static final String GPS_PROVIDER = "gps";
+    public static final String NETWORK_PROVIDER = "network";
+    public static final String PASSIVE_PROVIDER = "passive";
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "SimulatedLocation");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final Map<LocationListener, ScheduledFuture<?>> updates = new HashMap<LocationListener, ScheduledFuture<?>>();
+    private volatile Location lastKnown = null;
+
+    public boolean isProviderEnabled(String provider)
+    {
+        return !Boolean.getBoolean("lp." + provider + ".disabled");
+    }
+
+    public synchronized void requestLocationUpdates(final String provider, long minTime, float minDistance,
+                                                    final LocationListener listener, final Looper looper)
+    {
+        removeUpdates(listener);
+        final boolean gps = GPS_PROVIDER.equals(provider);
+        long ttff = Long.getLong("lp." + provider + ".ttff", gps ? 1500 : 300);
+        long interval = Math.max(minTime, Long.getLong("lp." + provider + ".interval", gps ? 500 : 1000));
+        final float first = Float.parseFloat(System.getProperty("lp." + provider + ".accuracy", gps ? "40" : "120"));
+        final float best = Float.parseFloat(System.getProperty("lp." + provider + ".bestAccuracy", gps ? "6" : "80"));
+        updates.put(listener, timer.scheduleAtFixedRate(new Runnable() {
+            private float accuracy = first;
+
+            public void run() {
+                final Location location = new Location(provider);
+                location.setLatitude(60.169912 + (Math.random() - 0.5) * 0.0001);
+                location.setLongitude(24.938423 + (Math.random() - 0.5) * 0.0001);
+                location.setAccuracy(accuracy);
+                location.setAltitude(23);
+                accuracy = Math.max(best, accuracy * 0.6f);
+                lastKnown = location;
+                new android.os.Handler(looper).post(new Runnable() {
+                    public void run() {
+                        listener.onLocationChanged(location);
+                    }
+                });
+            }
+        }, ttff, interval, TimeUnit.MILLISECONDS));
+    }
+
+    public synchronized void removeUpdates(LocationListener listener)
+    {
+        ScheduledFuture<?> future = updates.remove(listener);
+        if (future != null) future.cancel(false);
+    }
+
+    public Location getLastKnownLocation(String provider)
+    {
+        Location location = lastKnown;
+        return location != null && provider.equals(location.getProvider()) ? location : null;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class Handler
+{
+    private final Looper looper;
+    private final Map<Object, List<Future<?>>> pending = new HashMap<Object, List<Future<?>>>();
+
+    public Handler(Looper looper)
+    {
+        this.looper = looper;
+    }
+
+    public Looper getLooper()
+    {
+        return looper;
+    }
+
+    public boolean post(Runnable r)
+    {
+        looper.executor.execute(r);
+        return true;
+    }
+
+    public boolean postDelayed(Runnable r, long delayMillis)
+    {
+        looper.executor.schedule(r, delayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    public boolean postAtTime(Runnable r, Object token, long uptimeMillis)
+    {
+        Future<?> future = looper.executor.schedule(r, uptimeMillis - SystemClock.uptimeMillis(), TimeUnit.MILLISECONDS);
+        synchronized (pending) {
+            List<Future<?>> futures = pending.get(token);
+            if (futures == null) pending.put(token, futures = new ArrayList<Future<?>>());
+            futures.add(future);
+        }
+        return true;
+    }
+
+    public void removeCallbacksAndMessages(Object token)
+    {
+        List<Future<?>> futures;
+        synchronized (pending) {
+            futures = pending.remove(token);
+        }
+        if (futures == null) return;
+        for (Future<?> future : futures) future.cancel(false);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package android.util;
+
+/*
+ No-op android.util.Log for the JVM build, the benchmarks measure the code and not the logging.
+ Errors are printed with -Dlp.log=true, debug messages with -Dlp.debug=true.
+ */
+public final class Log
+{
+    private Log() {
+    }
+
+    public static int d(String tag, String msg)
+    {
+        if (Boolean.getBoolean("lp.debug")) System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int i(String tag, String msg) { return 0;}
+
+    public static int w(String tag, String msg) { return 0;}
+
+    public static int e(String tag, String msg)
+    {
+        if (Boolean.getBoolean("lp.log")) System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr)
+    {
+        if (Boolean.getBoolean("lp.log")) System.err.println(tag + ": " + msg + " " + tr);
+        return 0;
+    }
+}
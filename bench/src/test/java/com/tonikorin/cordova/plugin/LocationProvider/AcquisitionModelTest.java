@@ -0,0 +1,94 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ Requests simulated as MyLocation runs them: a fix within the deadline is recorded, otherwise a
+ miss, and only full windows are learned. The deadline converges to the bucket of the true
+ percentile of the fix times instead of ratcheting down.
+ */
+public class AcquisitionModelTest
+{
+    private static final String KEY = "accurate.gps+network.normal.fine";
+
+    @Before
+    public void setUp()
+    {
+        AcquisitionModel.reset();
+        AcquisitionModel.setPercentile(90);
+    }
+
+    @After
+    public void tearDown()
+    {
+        AcquisitionModel.reset();
+    }
+
+    @Test
+    public void uniformFixTimes() throws Exception
+    {
+        // p90 of uniform 0 - 60 sec is 54 sec, in the bucket up to 60 sec
+        assertEquals(60000, simulate(60000, 120000, 0));
+    }
+
+    @Test
+    public void uniformFixTimesWithMisses() throws Exception
+    {
+        // uniform 0 - 30 sec, one request in 20 gets no fix: p90 is 28.4 sec
+        assertEquals(30000, simulate(30000, 60000, 20));
+    }
+
+    @Test
+    public void fastFixes() throws Exception
+    {
+        // p90 of uniform 0 - 5 sec is 4.5 sec
+        assertEquals(5000, simulate(5000, 60000, 0));
+    }
+
+    // Deadline after the simulated requests, fix times uniform 0 - maxFixMs, one in missEvery
+    // requests gets no fix, 0 = none
+    private static long simulate(long maxFixMs, long timeoutMs, int missEvery) throws Exception
+    {
+        Random random = new Random(42);
+        for (int i = 0; i < 3000; i++) {
+            long[] timeouts = AcquisitionModel.getTimeouts(KEY, timeoutMs);
+            boolean fullWindow = timeouts[0] == timeoutMs && timeouts[1] == timeoutMs;
+            long fixMs = missEvery > 0 && random.nextInt(missEvery) == 0 ? Long.MAX_VALUE : (long) (random.nextDouble() * maxFixMs);
+            if (fixMs <= timeouts[0]) {
+                AcquisitionModel.recordFirstFix(KEY, fixMs, fullWindow);
+                AcquisitionModel.recordAccurateFix(KEY, fixMs, fullWindow);
+            } else {
+                AcquisitionModel.recordMiss(KEY, false, fullWindow);
+            }
+        }
+        JSONObject learned = AcquisitionModel.getLearned(timeoutMs).getJSONObject("keys").getJSONObject(KEY);
+        return learned.getLong("deadlineMs");
+    }
+}
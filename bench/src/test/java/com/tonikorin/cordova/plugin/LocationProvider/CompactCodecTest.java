@@ -0,0 +1,108 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/*
+ The compact and the JSON encoding of the same message decode to the same JSON, for both wire
+ versions of the JSON message.
+ */
+public class CompactCodecTest
+{
+    private static final int[] WIRES = {MessageWriter.WIRE_STRING, MessageWriter.WIRE_NESTED};
+
+    @Test
+    public void position() throws Exception
+    {
+        assertRoundTrip("POSITION", BenchData.positionFields(), BenchData.fix());
+    }
+
+    @Test
+    public void progressivePosition() throws Exception
+    {
+        Map<String, Object> fields = BenchData.positionFields();
+        fields.put("trackerOff", "22:00");
+        fields.put("seq", 3);
+        fields.put("final", true);
+        assertRoundTrip("POSITION", fields, BenchData.fix());
+    }
+
+    @Test
+    public void alive() throws Exception
+    {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("memberName", BenchData.MEMBER);
+        fields.put("teamId", "team1");
+        fields.put("blocked", true);
+        fields.put("messageType", "ALIVE");
+        assertRoundTrip("ALIVE", fields, null);
+    }
+
+    @Test
+    public void unchanged() throws Exception
+    {
+        Map<String, Object> fields = BenchData.positionFields();
+        fields.put("messageType", "UNCHANGED");
+        fields.put("ref", BenchData.NOW - 60000);
+        fields.put("age", 61500L);
+        fields.put("stationary", true);
+        assertRoundTrip("UNCHANGED", fields, null);
+    }
+
+    @Test
+    public void token() throws Exception
+    {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("name", BenchData.MEMBER);
+        fields.put("team", "team1");
+        fields.put("token", "f3Xa:APA91bH-token");
+        fields.put("tokenType", 3);
+        fields.put("uuid", "0a1b2c3d-uuid");
+        assertRoundTrip("TOKEN", fields, null);
+    }
+
+    @Test
+    public void queries() throws Exception
+    {
+        for (int team = 1; team <= 5; team++) {
+            JSONObject query = BenchData.query(team);
+            Map<String, Object> fields = BenchData.positionFields();
+            fields.put("teamId", query.getString("teamId"));
+            assertRoundTrip("POSITION", fields, BenchData.fix());
+        }
+    }
+
+    private static void assertRoundTrip(String type, Map<String, Object> fields, Object content) throws Exception
+    {
+        JSONObject compact = CompactCodec.decode(CompactCodec.encode(type, fields, content));
+        for (int wire : WIRES) {
+            JSONObject json = CompactCodec.decodeJson(MessageWriter.get().message(fields, content, wire).toString());
+            assertTrue(type + " wire " + wire + "\ncompact " + compact + "\njson    " + json, compact.similar(json));
+        }
+    }
+}
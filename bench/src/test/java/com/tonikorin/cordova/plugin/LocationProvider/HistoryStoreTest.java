@@ -0,0 +1,149 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ The history file in its own directory per test. Stores are created directly to reopen the same
+ file, the slot offsets follow the layout: 64 byte header, one 1024 byte status slot, 256 byte
+ line slots.
+ */
+public class HistoryStoreTest
+{
+    private static final int LINE_SLOTS = 64 + 1024;
+    private static final int LINE_SLOT_SIZE = 256;
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory("history").toFile();
+        file = new File(dir, HistoryStore.FILE_NAME);
+        file.deleteOnExit();
+    }
+
+    @Test
+    public void wrapAroundKeepsNewest() throws Exception
+    {
+        HistoryStore history = new HistoryStore(file);
+        for (int i = 1; i <= 250; i++) history.append(HistoryStore.TYPE_LINE, "line " + i);
+        List<HistoryStore.Entry> entries = history.readSince(0, 0);
+        assertEquals(200, entries.size());
+        assertEquals(51, entries.get(0).seq);
+        assertEquals("line 51", entries.get(0).data);
+        assertEquals("line 250", entries.get(199).data);
+        List<HistoryStore.Entry> page = history.readSince(240, 5);
+        assertEquals(5, page.size());
+        assertEquals(241, page.get(0).seq);
+    }
+
+    @Test
+    public void reopenKeepsEntriesAndCounters() throws Exception
+    {
+        HistoryStore history = new HistoryStore(file);
+        for (int i = 1; i <= 210; i++) history.append(HistoryStore.TYPE_LINE, "line " + i);
+        history.append(HistoryStore.TYPE_CHAT, "chat");
+        history.acknowledge(100);
+        HistoryStore reopened = new HistoryStore(file);
+        assertEquals(211, reopened.getLastSeq());
+        List<HistoryStore.Entry> entries = reopened.readSince(0, 0);
+        assertEquals(111, entries.size()); // ack 100 hides lines 11..100
+        assertEquals("line 101", entries.get(0).data);
+        assertEquals(212, reopened.append(HistoryStore.TYPE_LINE, "line 212"));
+        entries = reopened.readSince(0, 0); // the oldest slot held line 11
+        assertEquals(112, entries.size());
+        assertEquals("line 212", entries.get(111).data);
+    }
+
+    @Test
+    public void tornSlotIgnored() throws Exception
+    {
+        HistoryStore history = new HistoryStore(file);
+        history.append(HistoryStore.TYPE_LINE, "line 1");
+        history.append(HistoryStore.TYPE_LINE, "line 2");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(LINE_SLOTS + LINE_SLOT_SIZE);
+            raf.writeLong(0); // payload written, crashed before the seq
+        } finally {
+            raf.close();
+        }
+        HistoryStore reopened = new HistoryStore(file);
+        List<HistoryStore.Entry> entries = reopened.readSince(0, 0);
+        assertEquals(1, entries.size());
+        assertEquals("line 1", entries.get(0).data);
+        reopened.append(HistoryStore.TYPE_LINE, "line 3");
+        assertEquals(2, reopened.readSince(0, 0).size());
+    }
+
+    @Test
+    public void headerBehindSlotsRecovered() throws Exception
+    {
+        HistoryStore history = new HistoryStore(file);
+        history.append(HistoryStore.TYPE_LINE, "line 1");
+        history.append(HistoryStore.TYPE_LINE, "line 2");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4);
+            raf.writeLong(2); // slot seq 2 written, crashed before the header
+            raf.seek(20 + 4 * HistoryStore.TYPE_LINE);
+            raf.writeInt(1);
+        } finally {
+            raf.close();
+        }
+        HistoryStore reopened = new HistoryStore(file);
+        assertEquals(3, reopened.append(HistoryStore.TYPE_LINE, "line 3"));
+        List<HistoryStore.Entry> entries = reopened.readSince(0, 0);
+        assertEquals(3, entries.size());
+        assertEquals("line 2", entries.get(1).data);
+    }
+
+    @Test
+    public void oversizeEntryOverflows() throws Exception
+    {
+        StringBuilder text = new StringBuilder("{\"text\":\"");
+        for (int i = 0; i < 20000; i++) text.append((char) ('a' + i % 26));
+        String chat = text.append("\"}").toString();
+        HistoryStore history = new HistoryStore(file);
+        long seq = history.append(HistoryStore.TYPE_CHAT, chat);
+        assertTrue(seq > 0);
+        File overflow = new File(new File(dir, "location_history"), String.valueOf(seq));
+        assertTrue(overflow.exists());
+        HistoryStore reopened = new HistoryStore(file);
+        HistoryStore.Entry entry = reopened.readSince(0, 0).get(0);
+        assertEquals(chat, entry.data);
+        assertNotNull(reopened.readAndClear().getJSONArray("chatMessages"));
+        for (int i = 0; i < 100; i++) reopened.append(HistoryStore.TYPE_CHAT, "{}");
+        assertTrue(!overflow.exists()); // slot reused
+    }
+}
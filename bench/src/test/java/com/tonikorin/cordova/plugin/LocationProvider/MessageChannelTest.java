@@ -0,0 +1,172 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ The channel against the stand-in server: a message is delivered when acked, a dropped
+ connection is opened again by the next send, and without an ack or a server the message is
+ left to be posted. A slow handshake does not hold the channel, and server frames reach the
+ service only as queries of the channel's team. Every test uses its own team, channels are
+ process wide per url and team.
+ */
+public class MessageChannelTest
+{
+    private static int teams = 0;
+    private StandInServer server;
+    private String team;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new StandInServer(false);
+        server.start();
+        server.startChannel();
+        team = "channelTest" + (++teams);
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop();
+    }
+
+    @Test
+    public void sendIsAcked() throws Exception
+    {
+        MessageChannel channel = open();
+        assertTrue(channel.send(position()));
+        assertTrue(channel.send(position()));
+        Map<String, long[]> counts = server.takeCounts();
+        assertEquals(1, counts.get("HANDSHAKE")[0]);
+        assertEquals(2, counts.get("POSITION")[0]);
+        assertEquals(2, getStats().getLong("sent"));
+    }
+
+    @Test
+    public void reconnectAfterDrop() throws Exception
+    {
+        MessageChannel channel = open();
+        assertTrue(channel.send(position()));
+        server.dropChannels();
+        awaitClosed();
+        assertTrue(channel.send(position()));
+        Map<String, long[]> counts = server.takeCounts();
+        assertEquals(2, counts.get("HANDSHAKE")[0]);
+        assertEquals(2, counts.get("POSITION")[0]);
+    }
+
+    @Test
+    public void fallbackWithoutAck() throws Exception
+    {
+        MessageChannel channel = open();
+        assertTrue(channel.send(position()));
+        server.setChannelAcks(false);
+        assertFalse(channel.send(position()));
+        assertFalse(getStats().getBoolean("connected"));
+        long start = System.currentTimeMillis();
+        assertFalse(channel.send(position())); // not tried again at once
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(1, getStats().getLong("sent"));
+    }
+
+    @Test
+    public void fallbackWithoutServer() throws Exception
+    {
+        MessageChannel channel = open();
+        assertTrue(channel.send(position()));
+        server.stop();
+        awaitClosed();
+        assertFalse(channel.send(position()));
+    }
+
+    @Test
+    public void slowHandshakeDoesNotBlockChannel() throws Exception
+    {
+        ServerSocket silent = new ServerSocket(0); // accepts, never answers the upgrade
+        try {
+            String url = "ws://127.0.0.1:" + silent.getLocalPort() + "/channel";
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("X-team", team);
+            MessageChannel.open(url, headers, 60000, null);
+            Thread.sleep(200); // handshake in progress
+            long start = System.currentTimeMillis();
+            JSONObject stats = MessageChannel.getStats().getJSONObject(url + "#" + team);
+            assertTrue(System.currentTimeMillis() - start < 1000);
+            assertFalse(stats.getBoolean("connected"));
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test
+    public void serverFramesValidated()
+    {
+        LocationService.ChannelListener listener = new LocationService.ChannelListener(null, "team", "host", true);
+        assertTrue(listener.accepts("{\"teamId\":\"team\",\"messageType\":\"LOCATE\"}"));
+        assertTrue(listener.accepts("{\"teamId\":\"team\",\"messageType\":\"CHAT\",\"host\":\"host\"}"));
+        assertFalse(listener.accepts("{\"teamId\":\"other\",\"messageType\":\"LOCATE\"}"));
+        assertFalse(listener.accepts("{\"teamId\":\"team\",\"host\":\"elsewhere\"}"));
+        assertFalse(listener.accepts("{\"teamId\":\"team\",\"messageType\":\"TRACK\"}"));
+        assertFalse(listener.accepts("not json"));
+        assertFalse(new LocationService.ChannelListener(null, "team", "host", false).accepts("{\"teamId\":\"team\"}"));
+    }
+
+    private MessageChannel open() throws Exception
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("X-team", team);
+        MessageChannel channel = MessageChannel.open(server.getChannelUrl(), headers, 60000, null);
+        assertTrue(channel != null);
+        return channel;
+    }
+
+    private String position()
+    {
+        return MessageWriter.get().message(BenchData.positionFields(), BenchData.fix(), MessageWriter.WIRE_NESTED).toString();
+    }
+
+    private JSONObject getStats() throws Exception
+    {
+        return MessageChannel.getStats().getJSONObject(server.getChannelUrl() + "#" + team);
+    }
+
+    private void awaitClosed() throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getStats().getBoolean("connected")) {
+            assertTrue("channel not closed", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
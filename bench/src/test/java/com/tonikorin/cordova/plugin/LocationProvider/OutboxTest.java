@@ -0,0 +1,150 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ The outbox in its own directory per test: a newer state of a team drops the queued ones of the
+ same team only, expired messages are dropped without a post, a failed flush backs off and the
+ fix age of a replayed message includes the time it waited in the outbox.
+ */
+public class OutboxTest
+{
+    private static final String URL = "http://127.0.0.1:1/"; // refused, every post fails
+    private static final long MINUTE = 60 * 1000L;
+    private Outbox outbox;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        File dir = Files.createTempDirectory("outbox").toFile();
+        dir.deleteOnExit();
+        outbox = Outbox.open(dir);
+    }
+
+    @Test
+    public void positionSupersedesOwnTeamOnly()
+    {
+        long now = System.currentTimeMillis();
+        outbox.add("ALIVE", URL, headers("a", "x"), "{}", now);
+        outbox.add("ALIVE", URL, headers("b", "x"), "{}", now);
+        outbox.add("TRACK", URL, headers("a", "x"), "{}", now);
+        Map<String, String> reordered = new LinkedHashMap<String, String>();
+        reordered.put("X-s", "other");
+        reordered.putAll(headers("a", "y"));
+        outbox.add("POSITION", URL, reordered, "{}", now);
+        assertEquals(3, outbox.size()); // ALIVE of team a dropped, TRACK is no state
+        outbox.add("UNCHANGED", URL, headers("a", "x"), "{}", now);
+        assertEquals(3, outbox.size()); // POSITION of team a dropped
+        outbox.supersede("POSITION", URL, headers("b", "x"));
+        assertEquals(2, outbox.size());
+    }
+
+    @Test
+    public void expiredDroppedWithoutPost()
+    {
+        long now = System.currentTimeMillis();
+        outbox.add("ALIVE", URL, headers("a", "x"), "{}", now - 3 * MINUTE);
+        outbox.add("UNCHANGED", URL, headers("b", "x"), "{}", now - 16 * MINUTE);
+        outbox.add("TRACK", URL, headers("c", "x"), "{}", now - 16 * MINUTE);
+        outbox.add("TOKEN", URL, headers("d", "x"), "{}", now - 16 * MINUTE);
+        assertEquals(2, outbox.flush(HttpClient.getInstance(), false, now)); // TRACK and TOKEN kept, post failed
+        assertEquals(15 * MINUTE, Outbox.getMaxAge("UNCHANGED"));
+    }
+
+    @Test
+    public void failedFlushBacksOff()
+    {
+        long now = System.currentTimeMillis();
+        outbox.add("TRACK", URL, headers("a", "x"), "{}", now);
+        assertEquals(now, outbox.getNextAttempt());
+        assertEquals(1, outbox.flush(HttpClient.getInstance(), true, now));
+        assertEquals(now + 30 * 1000L, outbox.getNextAttempt());
+        assertEquals(1, outbox.flush(HttpClient.getInstance(), true, now + 10 * 1000L)); // not due, not posted
+        assertEquals(now + 30 * 1000L, outbox.getNextAttempt());
+        assertEquals(1, outbox.flush(HttpClient.getInstance(), true, now + 30 * 1000L));
+        assertEquals(now + 90 * 1000L, outbox.getNextAttempt());
+    }
+
+    @Test
+    public void flushDelivers() throws Exception
+    {
+        StandInServer server = new StandInServer(false);
+        server.start();
+        try {
+            String url = "http://" + server.getHost() + "/";
+            long now = System.currentTimeMillis();
+            outbox.add("TRACK", url, headers("a", "x"), "{\"messageType\":\"TRACK\",\"content\":[]}", now);
+            outbox.add("TRACK", url, headers("a", "x"), "{\"messageType\":\"TRACK\",\"content\":[]}", now);
+            assertEquals(0, outbox.flush(HttpClient.getInstance(), true, now));
+            assertEquals(2, server.takeCounts().get("TRACK")[0]);
+            assertEquals(-1, outbox.getNextAttempt());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void replayAddsWaitedAge() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        Outbox.Message message = new Outbox.Message();
+        message.created = now - 5000;
+        message.type = "POSITION";
+        message.body = "{\"messageType\":\"POSITION\",\"content\":\"{\\\"age\\\":100}\"}"; // wire 1
+        JSONObject replayed = new JSONObject(Outbox.getReplayBody(message, now));
+        assertEquals(5100, new JSONObject(replayed.getString("content")).getLong("age"));
+        message.body = "{\"messageType\":\"POSITION\",\"content\":{\"age\":100}}"; // wire 2
+        assertEquals(5100, new JSONObject(Outbox.getReplayBody(message, now)).getJSONObject("content").getLong("age"));
+        message.type = "UNCHANGED";
+        message.body = "{\"messageType\":\"UNCHANGED\",\"age\":100}";
+        assertEquals(5100, new JSONObject(Outbox.getReplayBody(message, now)).getLong("age"));
+        message.type = "TRACK";
+        message.body = "{\"messageType\":\"TRACK\",\"content\":[{\"age\":1},{\"age\":2}]}";
+        JSONObject track = new JSONObject(Outbox.getReplayBody(message, now));
+        assertEquals(5002, track.getJSONArray("content").getJSONObject(1).getLong("age"));
+        message.type = "ALIVE";
+        message.body = "{\"messageType\":\"ALIVE\",\"age\":100}";
+        assertEquals(message.body, Outbox.getReplayBody(message, now));
+        assertTrue(Outbox.isRetryable(503));
+    }
+
+    private static Map<String, String> headers(String team, String pass)
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("X-channel", "channel");
+        headers.put("X-team", team);
+        headers.put("X-pass", pass);
+        return headers;
+    }
+}
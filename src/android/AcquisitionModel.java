@@ -0,0 +1,297 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/*
+ Learned time-to-fix of the location requests. Every request is keyed by the provider strategy,
+ the enabled providers, the device state and the accuracy class, e.g.
+ "accurate.gps+network.deepSleep.fine". Per key there are
+ two decaying histograms: time to the first fix of any accuracy and time to the accurate fix,
+ a request which timed out counts as a miss. From the target percentile of these a request gets
+ its deadline (accurate fix) and its fallback point (no fix at all => getLastKnownLocation).
+
+ The learned values never exceed the configured or the deep sleep / power save timeout. Every
+ EXPLORE_EVERY:th request of a key runs with that full timeout. Only these full windows are
+ learned: a request cut at the learned deadline sees just the fixes faster than the deadline,
+ learning from it would pull the deadline lower and lower. The model can also recover when the
+ device gets better fixes again.
+ */
+class AcquisitionModel
+{
+    private static final String TAG = "AcquisitionModel";
+    static final String FILE_NAME = "location_acquisition.json";
+    // Upper bounds of the buckets in ms, the last one is everything above
+    static final long[] BOUNDS = {1000, 2000, 3000, 4000, 5000, 6000, 8000, 10000, 12000, 15000,
+            20000, 25000, 30000, 40000, 50000, 60000, 90000, 120000};
+    private static final int MISS = BOUNDS.length + 1; // index of the miss count
+    private static final double DECAY = 0.97; // per sample, about the last 30 samples count
+    private static final int MIN_SAMPLES = 10;
+    private static final int EXPLORE_EVERY = 5;
+    static final long MIN_TIMEOUT_MS = 3000;
+    private static final int FINE_ACCURACY = 100; // m
+    private static final long SAVE_DELAY_MS = 30 * 1000L;
+    private static final Executor saver = Executors.newSingleThreadExecutor();
+    private static final Map<String, Model> models = new HashMap<String, Model>();
+    static final int DEFAULT_PERCENTILE = 0; // fixed timeouts unless config "timeoutPercentile" is set
+    private static int percentile = DEFAULT_PERCENTILE; // 0 = fixed timeouts
+    private static File file = null;
+
+    private static class Model
+    {
+        final double[] first = new double[BOUNDS.length + 2]; // buckets + miss
+        final double[] accurate = new double[BOUNDS.length + 2];
+        long samples = 0;
+        long requests = 0; // not persisted
+    }
+
+    private AcquisitionModel() {
+    }
+
+    static synchronized void attach(File dir)
+    {
+        if (file != null) return;
+        file = new File(dir, FILE_NAME);
+        load();
+    }
+
+    // Config "timeoutPercentile", 0 turns the learned timeouts off
+    static synchronized void setPercentile(int value)
+    {
+        percentile = Math.max(0, Math.min(99, value));
+    }
+
+    static String getKey(String strategy, boolean gps, boolean network, boolean deepSleep, boolean powerSave, int accuracy)
+    {
+        String providers = gps && network ? "gps+network" : gps ? "gps" : "network";
+        String state = deepSleep ? "deepSleep" : powerSave ? "powerSave" : "normal";
+        return strategy + "." + providers + "." + state + "." + (accuracy <= FINE_ACCURACY ? "fine" : "coarse");
+    }
+
+    // Deadline and fallback point (ms) of a new request, {maxMs, maxMs} = a full window which
+    // is learned, e.g. when not learned yet
+    static synchronized long[] getTimeouts(String key, long maxMs)
+    {
+        long[] timeouts = {maxMs, maxMs};
+        Model model = getModel(key);
+        if (model.requests++ % EXPLORE_EVERY == 0) return timeouts;
+        if (percentile == 0 || model.samples < MIN_SAMPLES) return timeouts;
+        long accurate = quantile(model.accurate, percentile);
+        if (accurate > 0) timeouts[0] = clamp(accurate, maxMs);
+        long first = quantile(model.first, percentile);
+        // no fix at all in most requests: the providers are off in this state, fall back early
+        timeouts[1] = clamp(first > 0 ? first : MIN_TIMEOUT_MS, timeouts[0]);
+        return timeouts;
+    }
+
+    // fullWindow = the request ran with the full timeouts of getTimeouts, others are not learned
+    static void recordFirstFix(String key, long ms, boolean fullWindow)
+    {
+        if (fullWindow) record(key, ms, true);
+    }
+
+    static void recordAccurateFix(String key, long ms, boolean fullWindow)
+    {
+        if (fullWindow) record(key, ms, false);
+    }
+
+    // Timeout of a request, firstFix = a fix was received
+    static void recordMiss(String key, boolean firstFix, boolean fullWindow)
+    {
+        if (!fullWindow) return;
+        synchronized (AcquisitionModel.class) {
+            Model model = getModel(key);
+            model.samples++;
+            add(model.accurate, MISS);
+            if (!firstFix) add(model.first, MISS);
+        }
+        scheduleSave();
+    }
+
+    static synchronized void reset()
+    {
+        models.clear();
+        if (file != null && file.exists() && !file.delete())
+            Log.e(TAG, "Acquisition model delete failed");
+    }
+
+    // Per key: samples, miss ratios, percentiles of first and accurate fix and the timeouts
+    // used for a request of config "timeout" maxMs
+    static synchronized JSONObject getLearned(long maxMs) throws JSONException
+    {
+        JSONObject result = new JSONObject();
+        result.put("percentile", percentile);
+        JSONObject keys = new JSONObject();
+        for (Map.Entry<String, Model> entry : models.entrySet()) {
+            Model model = entry.getValue();
+            JSONObject json = new JSONObject();
+            json.put("samples", model.samples);
+            json.put("firstMissRatio", ratio(model.first, MISS));
+            json.put("accurateMissRatio", ratio(model.accurate, MISS));
+            json.put("firstP50Ms", quantile(model.first, 50));
+            json.put("firstP90Ms", quantile(model.first, 90));
+            json.put("accurateP50Ms", quantile(model.accurate, 50));
+            json.put("accurateP90Ms", quantile(model.accurate, 90));
+            if (percentile > 0 && model.samples >= MIN_SAMPLES) {
+                long accurate = quantile(model.accurate, percentile);
+                long deadline = accurate > 0 ? clamp(accurate, maxMs) : maxMs;
+                long first = quantile(model.first, percentile);
+                json.put("deadlineMs", deadline);
+                json.put("fallbackMs", clamp(first > 0 ? first : MIN_TIMEOUT_MS, deadline));
+            }
+            keys.put(entry.getKey(), json);
+        }
+        result.put("keys", keys);
+        return result;
+    }
+
+    private static void record(String key, long ms, boolean first)
+    {
+        synchronized (AcquisitionModel.class) {
+            Model model = getModel(key);
+            int bucket = 0;
+            while (bucket < BOUNDS.length && ms > BOUNDS[bucket]) bucket++;
+            if (first) {
+                add(model.first, bucket);
+            } else {
+                model.samples++;
+                add(model.accurate, bucket);
+            }
+        }
+        scheduleSave();
+    }
+
+    private static Model getModel(String key)
+    {
+        Model model = models.get(key);
+        if (model == null) models.put(key, model = new Model());
+        return model;
+    }
+
+    private static void add(double[] histogram, int index)
+    {
+        for (int i = 0; i < histogram.length; i++) histogram[i] *= DECAY;
+        histogram[index] += 1;
+    }
+
+    // Upper bound of the bucket of the percentile, -1 when it falls into the misses
+    private static long quantile(double[] histogram, int percentile)
+    {
+        double total = 0;
+        for (double count : histogram) total += count;
+        if (total == 0) return -1;
+        double sum = 0;
+        for (int i = 0; i <= BOUNDS.length; i++) {
+            sum += histogram[i];
+            if (sum >= total * percentile / 100) return i < BOUNDS.length ? BOUNDS[i] : BOUNDS[BOUNDS.length - 1];
+        }
+        return -1;
+    }
+
+    private static double ratio(double[] histogram, int index)
+    {
+        double total = 0;
+        for (double count : histogram) total += count;
+        return total == 0 ? 0 : Math.round(histogram[index] / total * 100) / 100.0;
+    }
+
+    private static long clamp(long ms, long maxMs)
+    {
+        return Math.max(Math.min(MIN_TIMEOUT_MS, maxMs), Math.min(ms, maxMs));
+    }
+
+    private static void scheduleSave()
+    {
+        if (file == null) return;
+        DeferredScheduler.schedule(FILE_NAME, SAVE_DELAY_MS, saver, new Runnable() {
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    private static void load()
+    {
+        try {
+            String text = JsonFile.read(file);
+            if (text == null) return;
+            JSONObject json = new JSONObject(text);
+            JSONArray names = json.names();
+            for (int i = 0; names != null && i < names.length(); i++) {
+                JSONObject values = json.getJSONObject(names.getString(i));
+                Model model = new Model();
+                model.samples = values.optLong("samples", 0);
+                readHistogram(values.optJSONArray("first"), model.first);
+                readHistogram(values.optJSONArray("accurate"), model.accurate);
+                models.put(names.getString(i), model);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Acquisition model load failed", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Acquisition model load failed", e);
+        }
+    }
+
+    // A file written with other BOUNDS is ignored
+    private static void readHistogram(JSONArray array, double[] histogram) throws JSONException
+    {
+        if (array == null || array.length() != histogram.length) return;
+        for (int i = 0; i < histogram.length; i++) histogram[i] = array.getDouble(i);
+    }
+
+    private static synchronized void save()
+    {
+        try {
+            JSONObject json = new JSONObject();
+            for (Map.Entry<String, Model> entry : models.entrySet()) {
+                JSONObject values = new JSONObject();
+                values.put("samples", entry.getValue().samples);
+                values.put("first", writeHistogram(entry.getValue().first));
+                values.put("accurate", writeHistogram(entry.getValue().accurate));
+                json.put(entry.getKey(), values);
+            }
+            JsonFile.write(file, json.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Acquisition model save failed", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Acquisition model save failed", e);
+        }
+    }
+
+    private static JSONArray writeHistogram(double[] histogram) throws JSONException
+    {
+        JSONArray array = new JSONArray();
+        for (double count : histogram) array.put(Math.round(count * 1000) / 1000.0);
+        return array;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+
+/*
+ Compact binary encoding of ALIVE, POSITION, TOKEN and UNCHANGED messages (Content-Type
+ application/x-lp-compact). Negotiated through X-version: a server which answers with an X-version
+ header of MIN_SERVER_VERSION or later gets the compact messages with that Content-Type, the JSON
+ message stays the default.
+
+ byte    format version (1)
+ byte    message type: 1 ALIVE, 2 POSITION, 3 TOKEN, 4 UNCHANGED
+ varint  field count
+ fields  byte key << 3 | kind, kind 0 string, 1 integer, 2 false, 3 true, 4 location
+         key 0 is followed by the field name as string, others index KEYS
+         string: varint length + UTF-8, integer: zigzag varint
+ location: zigzag latitude and longitude * 1e6, varint accuracy, zigzag altitude,
+         varint heading, varint speed, varint mTime, zigzag age,
+         zigzag timezone offset (min), byte flags (1 deepSleep, 2 powerSave)
+
+ Coordinates are the same fixed-point values as ROUND6 rounding in the JSON message.
+ decode() is the reference decoder, it returns the message in the nested JSON shape.
+ */
+final class CompactCodec
+{
+    static final String CONTENT_TYPE = "application/x-lp-compact";
+    static final int MIN_SERVER_VERSION = 1610;
+    private static final int FORMAT_VERSION = 1;
+    private static final String[] TYPES = {null, "ALIVE", "POSITION", "TOKEN", "UNCHANGED"};
+    private static final String[] KEYS = {null, "memberName", "teamId", "icon", "trackerOff", "blocked",
+            "seq", "final", "content", "name", "team", "token", "tokenType", "uuid",
+            "ref", "mTime", "accuracy", "age", "stationary"};
+    private static final int KIND_STRING = 0;
+    private static final int KIND_INTEGER = 1;
+    private static final int KIND_FALSE = 2;
+    private static final int KIND_TRUE = 3;
+    private static final int KIND_LOCATION = 4;
+
+    private CompactCodec() {
+    }
+
+    static boolean supports(String messageType)
+    {
+        return typeCode(messageType) > 0;
+    }
+
+    static byte[] encode(String messageType, Map<String, Object> fields, Object content)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(FORMAT_VERSION);
+        out.write(typeCode(messageType));
+        int count = content != null ? 1 : 0;
+        for (Map.Entry<String, Object> field : fields.entrySet())
+            if (field.getValue() != null && !field.getKey().equals("messageType")) count++;
+        writeVarint(out, count);
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (field.getValue() == null || field.getKey().equals("messageType")) continue;
+            writeField(out, field.getKey(), field.getValue());
+        }
+        if (content != null) writeField(out, "content", content);
+        return out.toByteArray();
+    }
+
+    static JSONObject decode(byte[] data) throws JSONException
+    {
+        Reader in = new Reader(data);
+        if (in.readByte() != FORMAT_VERSION) throw new JSONException("Unknown compact format");
+        int type = in.readByte();
+        if (type <= 0 || type >= TYPES.length) throw new JSONException("Unknown message type " + type);
+        JSONObject message = new JSONObject();
+        if (!TYPES[type].equals("TOKEN")) // as in JSON, not in push server messages
+            message.put("messageType", TYPES[type]);
+        long count = in.readVarint();
+        for (long i = 0; i < count; i++) {
+            int header = in.readByte();
+            int key = header >> 3;
+            if (key >= KEYS.length) throw new JSONException("Unknown field " + key);
+            String name = key == 0 ? in.readString() : KEYS[key];
+            switch (header & 7) {
+                case KIND_STRING: message.put(name, in.readString()); break;
+                case KIND_INTEGER: message.put(name, toNumber(unzigzag(in.readVarint()))); break;
+                case KIND_FALSE: message.put(name, false); break;
+                case KIND_TRUE: message.put(name, true); break;
+                case KIND_LOCATION: message.put(name, readLocation(in)); break;
+                default: throw new JSONException("Unknown kind " + (header & 7));
+            }
+        }
+        return message;
+    }
+
+    // JSON message in the same shape as decode(), a location content string is parsed
+    static JSONObject decodeJson(String body) throws JSONException
+    {
+        JSONObject message = new JSONObject(body);
+        String content = message.optString("content", "");
+        if (content.startsWith("{\"latitude\""))
+            message.put("content", new JSONObject(content));
+        return message;
+    }
+
+    private static int typeCode(String messageType)
+    {
+        for (int i = 1; i < TYPES.length; i++)
+            if (TYPES[i].equals(messageType)) return i;
+        return 0;
+    }
+
+    private static int keyCode(String name)
+    {
+        for (int i = 1; i < KEYS.length; i++)
+            if (KEYS[i].equals(name)) return i;
+        return 0;
+    }
+
+    private static void writeField(ByteArrayOutputStream out, String name, Object value)
+    {
+        int key = keyCode(name);
+        int kind;
+        if (value instanceof Fix) kind = KIND_LOCATION;
+        else if (value instanceof Boolean) kind = (Boolean) value ? KIND_TRUE : KIND_FALSE;
+        else if (value instanceof Integer || value instanceof Long) kind = KIND_INTEGER;
+        else kind = KIND_STRING;
+        out.write(key << 3 | kind);
+        if (key == 0) writeString(out, name);
+        switch (kind) {
+            case KIND_STRING: writeString(out, String.valueOf(value)); break;
+            case KIND_INTEGER: writeVarint(out, zigzag(((Number) value).longValue())); break;
+            case KIND_LOCATION: writeLocation(out, (Fix) value); break;
+        }
+    }
+
+    private static void writeLocation(ByteArrayOutputStream out, Fix fix)
+    {
+        writeVarint(out, zigzag(Math.round(fix.latitude * Fix.ROUND6)));
+        writeVarint(out, zigzag(Math.round(fix.longitude * Fix.ROUND6)));
+        writeVarint(out, Math.max(0, fix.accuracy));
+        writeVarint(out, zigzag(fix.altitude));
+        writeVarint(out, Math.max(0, fix.heading));
+        writeVarint(out, Math.max(0, fix.speed));
+        writeVarint(out, fix.time);
+        writeVarint(out, zigzag(fix.age));
+        writeVarint(out, zigzag(TimeZone.getDefault().getOffset(fix.time) / 60000));
+        out.write((fix.deepSleep ? 1 : 0) | (fix.powerSave ? 2 : 0));
+    }
+
+    // Same fields and order as the location JSON, the timestamp is the local time of the device
+    private static JSONObject readLocation(Reader in) throws JSONException
+    {
+        JSONObject location = new JSONObject();
+        location.put("latitude", (double) unzigzag(in.readVarint()) / Fix.ROUND6);
+        location.put("longitude", (double) unzigzag(in.readVarint()) / Fix.ROUND6);
+        location.put("accuracy", toNumber(in.readVarint()));
+        location.put("altitude", toNumber(unzigzag(in.readVarint())));
+        location.put("altitudeAccuracy", "-");
+        location.put("heading", toNumber(in.readVarint()));
+        location.put("speed", toNumber(in.readVarint()));
+        long time = in.readVarint();
+        long age = unzigzag(in.readVarint());
+        long offset = unzigzag(in.readVarint()) * 60000;
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+        location.put("timestamp", sdf.format(new Date(time + offset)));
+        location.put("mTime", time);
+        location.put("age", toNumber(age));
+        int flags = in.readByte();
+        if ((flags & 1) != 0) location.put("deepSleep", 1);
+        if ((flags & 2) != 0) location.put("powerSave", 1);
+        return location;
+    }
+
+    // Integers as org.json parses them from the JSON message
+    private static Object toNumber(long value)
+    {
+        if (value == (int) value) return (int) value;
+        return value;
+    }
+
+    private static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value)
+    {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value)
+    {
+        try {
+            byte[] bytes = value.getBytes("UTF-8");
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+    }
+
+    private static class Reader
+    {
+        private final byte[] data;
+        private int pos = 0;
+
+        Reader(byte[] data)
+        {
+            this.data = data;
+        }
+
+        int readByte() throws JSONException
+        {
+            if (pos >= data.length) throw new JSONException("Truncated compact message");
+            return data[pos++] & 0xff;
+        }
+
+        long readVarint() throws JSONException
+        {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new JSONException("Malformed varint");
+        }
+
+        String readString() throws JSONException
+        {
+            int length = (int) readVarint();
+            if (length < 0 || pos + length > data.length) throw new JSONException("Truncated compact message");
+            try {
+                String value = new String(data, pos, length, "UTF-8");
+                pos += length;
+                return value;
+            } catch (UnsupportedEncodingException e) {
+                throw new JSONException(e.getMessage());
+            }
+        }
+    }
+}
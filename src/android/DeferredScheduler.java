@@ -0,0 +1,62 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Timer for deferred service work (e.g. delayed push token refresh). No worker thread waits for
+ the delay. A task scheduled with the key of a pending task is merged into it: the pending
+ deadline is kept and the latest task runs once.
+ */
+class DeferredScheduler
+{
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+    private static final Map<String, Runnable> pending = new HashMap<String, Runnable>();
+
+    private DeferredScheduler() {
+    }
+
+    // The task runs in the executor, the timer thread only keeps time. Returns false when the
+    // task was merged into a pending one.
+    static boolean schedule(final String key, long delayMs, final Executor executor, Runnable task)
+    {
+        synchronized (pending) {
+            boolean merged = pending.containsKey(key);
+            pending.put(key, task);
+            if (merged) return false;
+        }
+        timer.schedule(new Runnable() {
+            public void run() {
+                Runnable latest;
+                synchronized (pending) {
+                    latest = pending.remove(key);
+                }
+                if (latest != null) executor.execute(latest);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+/*
+ The location sent in POSITION, rounded as in the message: 6 decimals of latitude and
+ longitude (= 1m), the other values to integers.
+ */
+final class Fix
+{
+    static final int ROUND6 = 1000000;
+
+    final double latitude;
+    final double longitude;
+    final int accuracy;
+    final long altitude;
+    final int heading;
+    final int speed;
+    final long time; // epoch ms of the fix
+    final long age;  // ms when the message was built
+    final boolean deepSleep;
+    final boolean powerSave;
+
+    Fix(double latitude, double longitude, float accuracy, double altitude, float heading, float speed,
+        long time, long age, boolean deepSleep, boolean powerSave)
+    {
+        this.latitude = (double) Math.round(latitude * ROUND6) / ROUND6;
+        this.longitude = (double) Math.round(longitude * ROUND6) / ROUND6;
+        this.accuracy = Math.round(accuracy);
+        this.altitude = Math.round(altitude);
+        this.heading = Math.round(heading);
+        this.speed = Math.round(speed);
+        this.time = time;
+        this.age = age;
+        this.deepSleep = deepSleep;
+        this.powerSave = powerSave;
+    }
+}
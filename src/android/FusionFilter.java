@@ -0,0 +1,84 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.location.Location;
+
+/*
+ Fusion of the GPS and network fixes of one location request. The newest fix of each provider
+ is kept, its error grows with its age by DRIFT_MPS (the device may have moved), and the
+ estimate is the inverse variance weighted mean of the two with the combined accuracy
+ 1 / sqrt(1/s1^2 + 1/s2^2). Successive fixes of one provider have correlated errors, so they
+ replace each other instead of being averaged. Two fixes which do not overlap are not fused,
+ the one with the smaller error is the estimate. Used in the engine thread only.
+ */
+class FusionFilter
+{
+    static final String PROVIDER = "fused";
+    private static final double DRIFT_MPS = 1.5; // walking speed
+    private static final double CONSISTENT_SIGMAS = 2;
+    private Location gps = null;
+    private Location network = null;
+
+    void add(Location location)
+    {
+        if (location == null || !location.hasAccuracy()) return;
+        if (PROVIDER.equals(location.getProvider())) return;
+        boolean isGps = "gps".equals(location.getProvider());
+        Location previous = isGps ? gps : network;
+        if (previous != null && previous.getElapsedRealtimeNanos() > location.getElapsedRealtimeNanos()) return;
+        if (isGps) gps = location;
+        else network = location;
+    }
+
+    // Raw fix when only one provider has a fix or the fixes do not overlap, null = no fixes
+    Location getEstimate()
+    {
+        if (gps == null) return network;
+        if (network == null) return gps;
+        double gpsSigma = getSigma(gps);
+        double networkSigma = getSigma(network);
+        Location better = gpsSigma <= networkSigma ? gps : network;
+        if (gps.distanceTo(network) > CONSISTENT_SIGMAS * (gpsSigma + networkSigma)) return better;
+        double gpsWeight = 1 / (gpsSigma * gpsSigma);
+        double networkWeight = 1 / (networkSigma * networkSigma);
+        double sum = gpsWeight + networkWeight;
+        Location newer = gps.getElapsedRealtimeNanos() >= network.getElapsedRealtimeNanos() ? gps : network;
+        Location fused = new Location(PROVIDER);
+        fused.setLatitude((gps.getLatitude() * gpsWeight + network.getLatitude() * networkWeight) / sum);
+        fused.setLongitude((gps.getLongitude() * gpsWeight + network.getLongitude() * networkWeight) / sum);
+        fused.setAccuracy((float) Math.sqrt(1 / sum));
+        fused.setAltitude(better.getAltitude());
+        fused.setBearing(better.getBearing());
+        fused.setSpeed(better.getSpeed());
+        fused.setTime(newer.getTime());
+        fused.setElapsedRealtimeNanos(newer.getElapsedRealtimeNanos());
+        return fused;
+    }
+
+    // Accuracy of the fix grown by its age
+    private static double getSigma(Location location)
+    {
+        double drift = DRIFT_MPS * LocationCache.getAge(location) / 1000.0;
+        double accuracy = Math.max(1, location.getAccuracy());
+        return Math.sqrt(accuracy * accuracy + drift * drift);
+    }
+}
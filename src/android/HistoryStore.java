@@ -0,0 +1,299 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ Locate and chat history in a memory mapped file of fixed size. Each segment is a ring buffer of
+ fixed size slots, an append writes one slot and the header, nothing else is rewritten. Every
+ entry gets a sequence number from one counter, entries up to the acknowledged sequence number
+ are treated as cleared. An entry larger than its slot (e.g. a long chat message) is written to
+ an overflow file named by its sequence number, the slot only refers to it. The overflow file is
+ deleted when its slot is reused.
+
+ File layout: header | status slot | line slots | chat slots
+ Header: magic, nextSeq, ackSeq, line write index, chat write index
+ Slot: seq (0 = empty), payload length (-1 = overflow file), UTF-8 payload
+
+ The seq of a slot is written last, a slot torn by a crash has seq 0 and is ignored. The sequence
+ counter and the write indexes are recovered from the slots when the file is opened.
+ */
+class HistoryStore
+{
+    static final int TYPE_STATUS = 0;
+    static final int TYPE_LINE = 1;
+    static final int TYPE_CHAT = 2;
+    static final String FILE_NAME = "location_history.bin";
+    private static final String TAG = "HistoryStore";
+    private static final int MAGIC = 0x4c504831; // LPH1
+    private static final int HEADER_SIZE = 64;
+    private static final int POS_NEXT_SEQ = 4;
+    private static final int POS_ACK_SEQ = 12;
+    private static final int POS_WRITE_INDEX = 20; // int per segment
+    private static final int SLOT_HEADER = 12;
+    private static final int OVERFLOW = -1;
+    private static final String OVERFLOW_DIR = "location_history";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Map<String, HistoryStore> stores = new HashMap<String, HistoryStore>();
+
+    private final Segment[] segments = new Segment[] {
+            new Segment(TYPE_STATUS, 1, 1024),
+            new Segment(TYPE_LINE, 200, 256),    // store only last 200 locate queries
+            new Segment(TYPE_CHAT, 100, 8192)    // store only last 100 chat messages
+    };
+    private final MappedByteBuffer buffer;
+    private final File overflowDir;
+    private long nextSeq;
+    private long ackSeq;
+
+    static class Entry
+    {
+        final long seq;
+        final int type;
+        final String data;
+
+        Entry(long seq, int type, String data)
+        {
+            this.seq = seq;
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    // One store per file in the process, the service and the plugin share it
+    static synchronized HistoryStore open(File dir) throws IOException
+    {
+        File file = new File(dir, FILE_NAME);
+        HistoryStore store = stores.get(file.getAbsolutePath());
+        if (store == null) {
+            store = new HistoryStore(file);
+            stores.put(file.getAbsolutePath(), store);
+        }
+        return store;
+    }
+
+    // Package private for tests, which reopen the file
+    HistoryStore(File file) throws IOException
+    {
+        overflowDir = new File(file.getParentFile(), OVERFLOW_DIR);
+        int size = HEADER_SIZE;
+        for (Segment segment : segments) {
+            segment.offset = size;
+            size += segment.capacity * segment.slotSize;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            boolean fresh = channel.size() != size;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // stays valid after close
+            if (fresh || buffer.getInt(0) != MAGIC) {
+                for (int i = 0; i < size; i += 8) buffer.putLong(i, 0);
+                buffer.putInt(0, MAGIC);
+                buffer.putLong(POS_NEXT_SEQ, 1);
+            }
+        } finally {
+            raf.close();
+        }
+        nextSeq = buffer.getLong(POS_NEXT_SEQ);
+        ackSeq = buffer.getLong(POS_ACK_SEQ);
+        recover();
+    }
+
+    // The header is written after the slot, a crash in between leaves it behind the slots
+    private void recover()
+    {
+        List<String> overflows = new ArrayList<String>();
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            segment.writeIndex = buffer.getInt(POS_WRITE_INDEX + 4 * i) % segment.capacity;
+            long newest = 0;
+            for (int j = 0; j < segment.capacity; j++) {
+                int slot = segment.offset + j * segment.slotSize;
+                long seq = buffer.getLong(slot);
+                if (seq == 0) continue;
+                if (buffer.getInt(slot + 8) == OVERFLOW) overflows.add(String.valueOf(seq));
+                if (seq > newest) {
+                    newest = seq;
+                    segment.writeIndex = (j + 1) % segment.capacity;
+                }
+            }
+            nextSeq = Math.max(nextSeq, newest + 1);
+        }
+        String[] names = overflowDir.list();
+        for (int i = 0; names != null && i < names.length; i++)
+            if (!overflows.contains(names[i]) && !new File(overflowDir, names[i]).delete())
+                Log.e(TAG, "History overflow delete failed");
+    }
+
+    // Sequence number of the entry, 0 = the overflow file could not be written and the entry is not stored
+    synchronized long append(int type, String data)
+    {
+        Segment segment = segments[type];
+        byte[] bytes = data.getBytes(UTF8);
+        int length = bytes.length;
+        int slot = segment.offset + segment.writeIndex * segment.slotSize;
+        long seq = nextSeq;
+        long old = buffer.getLong(slot);
+        boolean oldOverflow = old != 0 && buffer.getInt(slot + 8) == OVERFLOW;
+        buffer.putLong(slot, 0); // invalidate first, seq is written last
+        if (oldOverflow) deleteOverflow(old);
+        if (length > segment.slotSize - SLOT_HEADER) {
+            try {
+                if (!overflowDir.isDirectory() && !overflowDir.mkdirs())
+                    throw new IOException("mkdirs failed: " + overflowDir.getName());
+                JsonFile.write(new File(overflowDir, String.valueOf(seq)), data);
+            } catch (IOException e) {
+                Log.e(TAG, "History entry dropped, " + length + " bytes, type " + type, e);
+                return 0;
+            }
+            buffer.putInt(slot + 8, OVERFLOW);
+        } else {
+            buffer.putInt(slot + 8, length);
+            for (int i = 0; i < length; i++)
+                buffer.put(slot + SLOT_HEADER + i, bytes[i]);
+        }
+        nextSeq++;
+        buffer.putLong(slot, seq);
+        segment.writeIndex = (segment.writeIndex + 1) % segment.capacity;
+        buffer.putInt(POS_WRITE_INDEX + 4 * type, segment.writeIndex);
+        buffer.putLong(POS_NEXT_SEQ, nextSeq);
+        return seq;
+    }
+
+    // Entries newer than the cursor and the acknowledged sequence number in sequence order
+    synchronized List<Entry> readSince(long cursor, int limit)
+    {
+        long from = Math.max(cursor, ackSeq);
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Segment segment : segments) {
+            for (int i = 0; i < segment.capacity; i++) {
+                int slot = segment.offset + i * segment.slotSize;
+                long seq = buffer.getLong(slot);
+                if (seq <= from) continue;
+                int length = buffer.getInt(slot + 8);
+                String data;
+                if (length == OVERFLOW) {
+                    data = readOverflow(seq);
+                    if (data == null) continue;
+                } else {
+                    byte[] bytes = new byte[length];
+                    for (int j = 0; j < bytes.length; j++)
+                        bytes[j] = buffer.get(slot + SLOT_HEADER + j);
+                    data = new String(bytes, UTF8);
+                }
+                entries.add(new Entry(seq, segment.type, data));
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+            }
+        });
+        if (limit > 0 && entries.size() > limit)
+            return new ArrayList<Entry>(entries.subList(0, limit));
+        return entries;
+    }
+
+    private String readOverflow(long seq)
+    {
+        try {
+            String data = JsonFile.read(new File(overflowDir, String.valueOf(seq)));
+            if (data == null) Log.e(TAG, "History overflow missing, seq " + seq);
+            return data;
+        } catch (IOException e) {
+            Log.e(TAG, "History overflow read failed, seq " + seq, e);
+            return null;
+        }
+    }
+
+    private void deleteOverflow(long seq)
+    {
+        File file = new File(overflowDir, String.valueOf(seq));
+        if (file.exists() && !file.delete())
+            Log.e(TAG, "History overflow delete failed, seq " + seq);
+    }
+
+    synchronized void acknowledge(long seq)
+    {
+        if (seq <= ackSeq) return;
+        ackSeq = Math.min(seq, nextSeq - 1);
+        buffer.putLong(POS_ACK_SEQ, ackSeq);
+    }
+
+    synchronized long getLastSeq()
+    {
+        return nextSeq - 1;
+    }
+
+    // History in the original JSON format: updateStatus, lines and chatMessages
+    synchronized JSONObject readAndClear() throws JSONException
+    {
+        JSONObject history = new JSONObject();
+        JSONArray lines = new JSONArray();
+        JSONArray chatMessages = new JSONArray();
+        for (Entry entry : readSince(0, 0)) {
+            if (entry.type == TYPE_STATUS)
+                history.put("updateStatus", new JSONObject(entry.data));
+            else if (entry.type == TYPE_LINE)
+                lines.put(entry.data);
+            else
+                chatMessages.put(entry.data);
+        }
+        if (lines.length() > 0) history.put("lines", lines);
+        if (chatMessages.length() > 0) history.put("chatMessages", chatMessages);
+        acknowledge(getLastSeq());
+        return history;
+    }
+
+    private static class Segment
+    {
+        final int type;
+        final int capacity;
+        final int slotSize;
+        int offset;
+        int writeIndex;
+
+        Segment(int type, int capacity, int slotSize)
+        {
+            this.type = type;
+            this.capacity = capacity;
+            this.slotSize = slotSize;
+        }
+    }
+}
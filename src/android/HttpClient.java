@@ -0,0 +1,312 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/*
+ Process wide HTTP client shared by all LocationService instances. The platform HttpURLConnection
+ keeps idle keep-alive connections in a pool as long as the response body is consumed and the
+ connection is not disconnected. The pool size and keep-alive time are the platform defaults, the
+ process wide http.* system properties are not changed since they belong to the host app. All HTTPS connections use the same SSLSocketFactory so that the
+ pool can match them and the TLS session cache of one SSLContext is used for session resumption.
+ */
+class HttpClient
+{
+    private static final String TAG = "HttpClient";
+    private static final int TLS_SESSION_CACHE_SIZE = 20;
+    private static final int TLS_SESSION_TIMEOUT_SEC = 24 * 60 * 60;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static HttpClient instance = null;
+
+    private final SSLSocketFactory sslSocketFactory;
+    private final Map<String, HostStats> hostStats = new HashMap<String, HostStats>();
+    private final Map<String, Boolean> tlsSessions = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > TLS_SESSION_CACHE_SIZE * 4;
+        }
+    };
+
+    // Writes the request body directly to the connection
+    interface Body
+    {
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    static synchronized HttpClient getInstance()
+    {
+        if (instance == null) instance = new HttpClient();
+        return instance;
+    }
+
+    private HttpClient()
+    {
+        SSLSocketFactory factory;
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+            SSLSessionContext sessions = sslContext.getClientSessionContext();
+            if (sessions != null) {
+                sessions.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+                sessions.setSessionTimeout(TLS_SESSION_TIMEOUT_SEC);
+            }
+            factory = new CountingSocketFactory(sslContext.getSocketFactory());
+        } catch (Exception e) {
+            Log.e(TAG, "TLS context exception, using default factory", e);
+            factory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+        sslSocketFactory = factory;
+    }
+
+    static Body bytes(final byte[] content)
+    {
+        return new Body() {
+            public void writeTo(OutputStream os) throws IOException {
+                os.write(content);
+            }
+        };
+    }
+
+    // Posts the body and returns the HTTP response code. The response body is always consumed and
+    // the connection is left open, so that the next post to the same host reuses it.
+    int post(String urlString, Map<String, String> headers, Body body) throws IOException
+    {
+        URL url = new URL(urlString);
+        HostStats stats = getHostStats(url.getHost());
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        if (con instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) con).setSSLSocketFactory(sslSocketFactory);
+            synchronized (this) {
+                stats.secure = true;
+            }
+        }
+        OutputStream os = null;
+        try {
+            con.setRequestMethod("POST");
+            con.setDoOutput(true); // = POST method
+            con.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            con.setReadTimeout(READ_TIMEOUT_MS);
+            con.setRequestProperty("Connection", "keep-alive");
+            for (Map.Entry<String, String> header : headers.entrySet())
+                con.setRequestProperty(header.getKey(), header.getValue());
+            con.setChunkedStreamingMode(0);
+            os = con.getOutputStream();
+            body.writeTo(os);
+            os.flush();
+            int responseCode = con.getResponseCode();
+            String version = con.getHeaderField("X-version");
+            consume(responseCode < 400 ? con.getInputStream() : con.getErrorStream());
+            synchronized (this) {
+                stats.requests++;
+                if (responseCode >= 400) stats.failures++;
+                stats.lastUsed = System.currentTimeMillis();
+                if (responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE)
+                    stats.compact = false;
+                else if (version != null)
+                    stats.compact = parseVersion(version) >= CompactCodec.MIN_SERVER_VERSION;
+            }
+            return responseCode;
+        } catch (IOException e) {
+            synchronized (this) {
+                stats.requests++;
+                stats.failures++;
+            }
+            con.disconnect(); // broken connection must not go back to the pool
+            throw e;
+        } finally {
+            if (os != null) os.close();
+        }
+    }
+
+    // True when the last response of the host had an X-version which supports the compact format
+    synchronized boolean acceptsCompact(String urlString)
+    {
+        try {
+            return getHostStats(new URL(urlString).getHost()).compact;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int parseVersion(String version)
+    {
+        try {
+            return Integer.parseInt(version.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void consume(InputStream is)
+    {
+        if (is == null) return;
+        byte[] buffer = new byte[512];
+        try {
+            while (is.read(buffer) != -1) ;
+        } catch (IOException e) {
+            Log.d(TAG, "consume response: " + e.getMessage());
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private synchronized HostStats getHostStats(String host)
+    {
+        HostStats stats = hostStats.get(host);
+        if (stats == null) {
+            stats = new HostStats();
+            hostStats.put(host, stats);
+        }
+        return stats;
+    }
+
+    // Pool statistics per host. Sockets are observed only through the HTTPS socket factory, so
+    // "connections" and "reused" (posts that reused a warm connection) are reported for HTTPS hosts only.
+    synchronized JSONObject getStats() throws JSONException
+    {
+        JSONObject result = new JSONObject();
+        for (Map.Entry<String, HostStats> entry : hostStats.entrySet()) {
+            HostStats stats = entry.getValue();
+            JSONObject host = new JSONObject();
+            host.put("requests", stats.requests);
+            host.put("failures", stats.failures);
+            if (stats.secure) {
+                host.put("connections", stats.connections);
+                host.put("reused", Math.max(0, stats.requests - stats.connections));
+            }
+            host.put("tlsHandshakes", stats.handshakes);
+            host.put("tlsResumed", stats.resumed);
+            host.put("lastUsed", stats.lastUsed);
+            host.put("compact", stats.compact);
+            result.put(entry.getKey(), host);
+        }
+        return result;
+    }
+
+    private synchronized void onNewConnection(String host)
+    {
+        getHostStats(host).connections++;
+    }
+
+    private synchronized void onHandshake(String host, byte[] sessionId)
+    {
+        HostStats stats = getHostStats(host);
+        stats.handshakes++;
+        String key = host + ":" + Arrays.hashCode(sessionId);
+        if (sessionId.length > 0 && tlsSessions.put(key, Boolean.TRUE) != null)
+            stats.resumed++;
+    }
+
+    private static class HostStats
+    {
+        int requests = 0;
+        int failures = 0;
+        int connections = 0;
+        int handshakes = 0;
+        int resumed = 0;
+        long lastUsed = 0;
+        boolean secure = false;
+        boolean compact = false;
+    }
+
+    // Delegating factory which only observes the sockets created by the connection pool
+    private class CountingSocketFactory extends SSLSocketFactory
+    {
+        private final SSLSocketFactory delegate;
+
+        CountingSocketFactory(SSLSocketFactory delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        private Socket observe(Socket socket, final String host)
+        {
+            onNewConnection(host);
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        onHandshake(host, event.getSession().getId());
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() { return delegate.getDefaultCipherSuites(); }
+
+        @Override
+        public String[] getSupportedCipherSuites() { return delegate.getSupportedCipherSuites(); }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return observe(delegate.createSocket(s, host, port, autoClose), host);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return observe(delegate.createSocket(host, port), host);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return observe(delegate.createSocket(host, port, localHost, localPort), host);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return observe(delegate.createSocket(host, port), host.getHostName());
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return observe(delegate.createSocket(address, port, localAddress, localPort), address.getHostName());
+        }
+    }
+}
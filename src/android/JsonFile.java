@@ -0,0 +1,71 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/*
+ Small JSON state files of the plugin (outbox, metrics, acquisition model). A file is read whole
+ and written to a temp file which is renamed over it, a crash never leaves a half written file.
+ */
+final class JsonFile
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private JsonFile() {
+    }
+
+    // Text of the file, null when there is no file
+    static String read(File file) throws IOException
+    {
+        if (!file.exists()) return null;
+        InputStream is = new FileInputStream(file);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = is.read(buffer)) != -1) bytes.write(buffer, 0, n);
+        } finally {
+            is.close();
+        }
+        return new String(bytes.toByteArray(), UTF8);
+    }
+
+    static void write(File file, String text) throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            os.write(text.getBytes(UTF8));
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("rename failed: " + file.getName());
+    }
+}
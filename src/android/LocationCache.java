@@ -0,0 +1,95 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.location.Location;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ Process wide cache of recent fixes. A query is answered from the cache when a fix is at least
+ as accurate as requested and not older than the allowed max age, otherwise a new location
+ query is started.
+ */
+class LocationCache
+{
+    private static final int MAX_FIXES = 8;
+    private static final List<Location> fixes = new ArrayList<Location>();
+    private static int hits = 0;
+    private static int misses = 0;
+    private static int acquisitions = 0;
+    private static long acquisitionMs = 0;
+
+    private LocationCache() {
+    }
+
+    static synchronized void put(Location location)
+    {
+        if (location == null) return;
+        fixes.add(0, location);
+        if (fixes.size() > MAX_FIXES) fixes.remove(fixes.size() - 1);
+    }
+
+    // Duration of a location query which was not answered from the cache
+    static synchronized void recordAcquisition(long durationMs)
+    {
+        acquisitions++;
+        acquisitionMs += durationMs;
+    }
+
+    // Newest fix which meets the accuracy and age (ms), null = start a new location query
+    static synchronized Location get(int accuracy, long maxAge)
+    {
+        if (maxAge <= 0) return null; // Cache not allowed, not counted as a miss
+        Location best = null;
+        for (Location location : fixes) {
+            if (getAge(location) > maxAge || location.getAccuracy() > accuracy)
+                continue;
+            if (best == null || location.getElapsedRealtimeNanos() > best.getElapsedRealtimeNanos())
+                best = location;
+        }
+        if (best == null) misses++;
+        else hits++;
+        return best;
+    }
+
+    static long getAge(Location location)
+    {
+        return (SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos()) / 1000000;
+    }
+
+    static synchronized JSONObject getStats() throws JSONException
+    {
+        JSONObject stats = new JSONObject();
+        long averageMs = acquisitions == 0 ? 0 : acquisitionMs / acquisitions;
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("fixes", fixes.size());
+        stats.put("averageAcquisitionMs", averageMs);
+        stats.put("savedAcquisitionMs", hits * averageMs); // estimated GPS time saved by the cache
+        return stats;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ Long-lived location thread shared by all MyLocation requests. The GPS and network providers
+ are registered once while at least one request uses them, with the smallest update interval
+ of those requests. A request adds providers in stages (ProviderStrategy), every fix is offered
+ to all active requests and the timeouts and stages are Handler callbacks. Continuous subscribers (tracking) get every
+ fix too, their provider is registered with the smallest interval and distance they ask for.
+ A request ends at its timeout, or earlier at its learned fallback point (AcquisitionModel)
+ when no fix of any accuracy has arrived by then. The passive provider, when enabled, only
+ feeds the PassiveCollector.
+ Everything except add(), remove(), subscribe(), unsubscribe() and setPassive() runs in the
+ engine thread.
+ */
+class LocationEngine
+{
+    private static final String TAG = "LocationEngine";
+    private static final long PASSIVE_INTERVAL_MS = 1000;
+    private static LocationEngine instance = null;
+
+    private final Handler handler;
+    private final LocationManager lm;
+    private final List<MyLocation> requests = new ArrayList<MyLocation>();
+    private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+    private boolean tracking = false;
+    private boolean passive = false;
+
+    private final Registration gps = new Registration(LocationManager.GPS_PROVIDER);
+    private final Registration network = new Registration(LocationManager.NETWORK_PROVIDER);
+    private final LocationListener locationListenerTrack = new EngineListener();
+    private final LocationListener locationListenerPassive = new LocationListener() {
+        public void onLocationChanged(Location location) {
+            PassiveCollector.put(location);
+        }
+
+        public void onProviderDisabled(String provider) {
+        }
+
+        public void onProviderEnabled(String provider) {
+        }
+
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+    };
+
+    // Continuous location updates, called in the engine thread
+    interface Subscriber {
+        long getInterval(); // ms
+        float getDistance(); // m
+        void onLocation(Location location);
+    }
+
+    private class EngineListener implements LocationListener {
+        public void onLocationChanged(Location location) {
+            dispatch(location);
+        }
+
+        public void onProviderDisabled(String provider) {
+        }
+
+        public void onProviderEnabled(String provider) {
+        }
+
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+    }
+
+    // Provider registration of the requests, interval -1 = not registered
+    private class Registration {
+        final String provider;
+        final LocationListener listener = new EngineListener();
+        long interval = -1;
+
+        Registration(String provider) {
+            this.provider = provider;
+        }
+
+        void update(long wanted) {
+            if (wanted == interval) return;
+            if (interval >= 0) lm.removeUpdates(listener);
+            interval = -1;
+            if (wanted < 0) return;
+            lm.requestLocationUpdates(provider, wanted, 0, listener, handler.getLooper());
+            interval = wanted;
+        }
+    }
+
+    static synchronized LocationEngine getInstance(Context context)
+    {
+        if (instance == null) instance = new LocationEngine(context.getApplicationContext());
+        return instance;
+    }
+
+    private LocationEngine(Context context)
+    {
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    void add(final MyLocation request)
+    {
+        handler.post(new Runnable() {
+            public void run() {
+                start(request);
+            }
+        });
+    }
+
+    // Ends the request without a result, e.g. the caller is not interested anymore
+    void remove(final MyLocation request)
+    {
+        handler.post(new Runnable() {
+            public void run() {
+                if (requests.contains(request)) release(request);
+            }
+        });
+    }
+
+    void subscribe(final Subscriber subscriber)
+    {
+        handler.post(new Runnable() {
+            public void run() {
+                if (!subscribers.contains(subscriber)) subscribers.add(subscriber);
+                updateTracking();
+            }
+        });
+    }
+
+    void unsubscribe(final Subscriber subscriber)
+    {
+        handler.post(new Runnable() {
+            public void run() {
+                if (subscribers.remove(subscriber)) updateTracking();
+            }
+        });
+    }
+
+    // Config "passive", collecting the fixes of the passive provider
+    void setPassive(final boolean enabled)
+    {
+        handler.post(new Runnable() {
+            public void run() {
+                if (enabled == passive) return;
+                try {
+                    if (enabled)
+                        lm.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, PASSIVE_INTERVAL_MS, 0, locationListenerPassive, handler.getLooper());
+                    else
+                        lm.removeUpdates(locationListenerPassive);
+                    passive = enabled;
+                } catch (Exception ex) { // very likely user permission missing...
+                    Log.e(TAG, "passive requestLocationUpdates failed", ex);
+                    Metrics.count("provider.passive.failure");
+                }
+                PassiveCollector.setEnabled(passive);
+            }
+        });
+    }
+
+    // Registers the tracking listener again with the smallest interval and distance, GPS when
+    // it is enabled, otherwise the network provider
+    private void updateTracking()
+    {
+        try {
+            if (tracking) lm.removeUpdates(locationListenerTrack);
+            tracking = false;
+            if (subscribers.isEmpty()) return;
+            long interval = Long.MAX_VALUE;
+            float distance = Float.MAX_VALUE;
+            for (Subscriber subscriber : subscribers) {
+                interval = Math.min(interval, subscriber.getInterval());
+                distance = Math.min(distance, subscriber.getDistance());
+            }
+            String provider = lm.isProviderEnabled(LocationManager.GPS_PROVIDER) ?
+                    LocationManager.GPS_PROVIDER : LocationManager.NETWORK_PROVIDER;
+            lm.requestLocationUpdates(provider, interval, distance, locationListenerTrack, handler.getLooper());
+            tracking = true;
+        } catch (Exception ex) { // very likely user permission missing...
+            Log.e(TAG, "tracking requestLocationUpdates failed", ex);
+        }
+    }
+
+    private void start(final MyLocation request)
+    {
+        if (!request.begin(lm)) return; // no provider enabled, already answered
+        requests.add(request);
+        if (!updateProviders()) { // very likely user permission missing...
+            requests.remove(request);
+            updateProviders();
+            request.finish(null);
+            return;
+        }
+        for (int i = 1; i < request.getStageCount(); i++) {
+            final int stage = i;
+            handler.postAtTime(new Runnable() {
+                public void run() {
+                    if (!requests.contains(request)) return;
+                    request.escalate(stage);
+                    updateProviders();
+                }
+            }, request, SystemClock.uptimeMillis() + request.getStageStart(i));
+        }
+        handler.postAtTime(new Runnable() {
+            public void run() {
+                if (!requests.contains(request)) return;
+                release(request);
+                request.onTimeout(lm);
+            }
+        }, request, SystemClock.uptimeMillis() + request.getTimeout());
+        if (request.getFallbackTime() < request.getTimeout()) {
+            handler.postAtTime(new Runnable() {
+                public void run() {
+                    if (!requests.contains(request) || request.hasFix()) return;
+                    release(request);
+                    request.onFallback(lm);
+                }
+            }, request, SystemClock.uptimeMillis() + request.getFallbackTime());
+        }
+    }
+
+    private void dispatch(Location location)
+    {
+        for (MyLocation request : new ArrayList<MyLocation>(requests)) {
+            Location answer = request.offer(location);
+            if (answer != null) {
+                release(request);
+                request.finish(answer);
+            } else {
+                request.progress(location);
+            }
+        }
+        for (Subscriber subscriber : new ArrayList<Subscriber>(subscribers))
+            subscriber.onLocation(location);
+    }
+
+    private void release(MyLocation request)
+    {
+        requests.remove(request);
+        handler.removeCallbacksAndMessages(request); // timeout and stages
+        updateProviders();
+    }
+
+    // Registers the providers with the smallest interval of the requests using them and
+    // unregisters the unused ones. Returns false when a registration failed.
+    private boolean updateProviders()
+    {
+        long gpsInterval = -1;
+        long networkInterval = -1;
+        for (MyLocation request : requests) {
+            if (request.usesGps())
+                gpsInterval = gpsInterval < 0 ? request.getGpsInterval() : Math.min(gpsInterval, request.getGpsInterval());
+            if (request.usesNetwork())
+                networkInterval = networkInterval < 0 ? request.getNetworkInterval() : Math.min(networkInterval, request.getNetworkInterval());
+        }
+        boolean ok = true;
+        try {
+            gps.update(gpsInterval);
+        } catch (Exception ex) {
+            Log.e(TAG, "gps requestLocationUpdates failed", ex);
+            Metrics.count("provider.gps.failure");
+            ok = false;
+        }
+        try {
+            network.update(networkInterval);
+        } catch (Exception ex) {
+            Log.e(TAG, "network requestLocationUpdates failed", ex);
+            Metrics.count("provider.network.failure");
+            ok = false;
+        }
+        return ok;
+    }
+}
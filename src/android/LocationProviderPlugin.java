@@ -22,6 +22,7 @@ package com.tonikorin.cordova.plugin.LocationProvider;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.PluginResult;
 
 import android.content.Context;
 import android.content.Intent;
@@ -39,14 +40,20 @@ import android.location.Location;
 import android.util.Log;
 
 import java.io.IOException;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static java.lang.Math.round;
 
 public class LocationProviderPlugin extends CordovaPlugin {
 
     private static final String TAG = "LocationProviderPlugin";
+    private final Set<MyLocation> pendingRequests = new HashSet<MyLocation>();
+    private final OwnPositionWatch ownPositionWatch = new OwnPositionWatch();
 
     /**
      * Executes the request.
@@ -70,25 +77,56 @@ public class LocationProviderPlugin extends CordovaPlugin {
             JSONObject history = readAndClearHistory();
             callback.success(history);
             return true;
+        } else if (action.equalsIgnoreCase("getHistorySince")) {
+            long cursor = args.optLong(0, 0);
+            int limit = args.optInt(1, 50);
+            callback.success(readHistorySince(cursor, limit));
+            return true;
+        } else if (action.equalsIgnoreCase("ackHistory")) {
+            acknowledgeHistory(args.getLong(0));
+            callback.success();
+            return true;
         } else if (action.equalsIgnoreCase("getOwnPosition")) {
-            cordova.getThreadPool().execute(new Runnable() {
-                public void run() {
-                    try {
-                        JSONObject params = args.getJSONObject(0);
-                        JSONObject position = getOwnPosition(params);
-                        if (position == null) {
-                            JSONObject error = new JSONObject();
-                            error.put("message", "generic location provider failure");
-                            error.put("code", -1);
-                            callback.error(error);
-                        } else {
-                            callback.success(position);
-                        }
-                    } catch (JSONException e) {
-                        Log.e(TAG, "own position, json failed", e);
-                    }
-                }
-            });
+            getOwnPosition(args.getJSONObject(0), callback);
+            return true;
+        } else if (action.equalsIgnoreCase("watchOwnPosition")) {
+            watchOwnPosition(args.getString(0), args.optJSONObject(1), callback);
+            return true;
+        } else if (action.equalsIgnoreCase("clearWatch")) {
+            clearWatch(args.getString(0));
+            callback.success();
+            return true;
+        } else if (action.equalsIgnoreCase("getConnectionStats")) {
+            callback.success(HttpClient.getInstance().getStats());
+            return true;
+        } else if (action.equalsIgnoreCase("getLocationCacheStats")) {
+            callback.success(LocationCache.getStats());
+            return true;
+        } else if (action.equalsIgnoreCase("getMetrics")) {
+            Metrics.attach(cordova.getActivity().getApplicationContext().getFilesDir());
+            JSONObject metrics = Metrics.getMetrics();
+            metrics.put("connections", HttpClient.getInstance().getStats());
+            metrics.put("locationCache", LocationCache.getStats());
+            metrics.put("passive", PassiveCollector.getStats());
+            metrics.put("channels", MessageChannel.getStats());
+            ServiceConfig config = ServiceConfig.getCurrent();
+            AcquisitionModel.attach(cordova.getActivity().getApplicationContext().getFilesDir());
+            metrics.put("acquisition", AcquisitionModel.getLearned((config != null ? config.getTimeout() : 60) * 1000L));
+            callback.success(metrics);
+            return true;
+        } else if (action.equalsIgnoreCase("resetMetrics")) {
+            Metrics.attach(cordova.getActivity().getApplicationContext().getFilesDir());
+            Metrics.reset();
+            callback.success();
+            return true;
+        } else if (action.equalsIgnoreCase("startTracking")) {
+            JSONObject options = args.optJSONObject(1);
+            startTracking("start", args.getString(0), options != null ? options.toString() : "{}");
+            callback.success();
+            return true;
+        } else if (action.equalsIgnoreCase("stopTracking")) {
+            startTracking("stop", args.getString(0), "{}");
+            callback.success();
             return true;
         } else if (action.equalsIgnoreCase("startService")) {
             String notification = args.getString(0);
@@ -104,17 +142,70 @@ public class LocationProviderPlugin extends CordovaPlugin {
         SharedPreferences.Editor editor = sp.edit();
         editor.putString(LocationService.CONFIG_NAME, config.toString());
         editor.commit();
+        try { // compile once here, the service instances use the compiled one
+            ServiceConfig compiled = ServiceConfig.compile(config.toString());
+            ServiceConfig.install(compiled);
+            AcquisitionModel.setPercentile(compiled.getTimeoutPercentile());
+            PassiveCollector.setMaxAge(compiled.getPassiveMaxAge() * 1000L);
+            LocationEngine.getInstance(cordova.getActivity().getApplicationContext()).setPassive(compiled.isPassive());
+        } catch (JSONException e) {
+            Log.e(TAG, "saveConfiguration, compile failed", e);
+            ServiceConfig.install(null); // service compiles the stored one
+        }
     }
 
     private JSONObject readAndClearHistory() throws JSONException {
         Log.d(TAG, "readAndClearHistory");
-        SharedPreferences sp = getSharedPreferences();
-        String historyJsonStr = sp.getString(LocationService.HISTORY_NAME, "{}");
-        // Clear
-        SharedPreferences.Editor editor = sp.edit();
-        editor.putString(LocationService.HISTORY_NAME, "{}");
-        editor.commit();
-        return new JSONObject(historyJsonStr);
+        Context context = cordova.getActivity().getApplicationContext();
+        try {
+            return LocationService.openHistory(context).readAndClear();
+        } catch (IOException e) {
+            Log.e(TAG, "readAndClearHistory failed", e);
+            return new JSONObject();
+        }
+    }
+
+    // One page of history entries newer than the cursor, nothing is cleared
+    private JSONObject readHistorySince(long cursor, int limit) throws JSONException {
+        Context context = cordova.getActivity().getApplicationContext();
+        JSONObject page = new JSONObject();
+        JSONArray entries = new JSONArray();
+        boolean more = false;
+        try {
+            if (limit <= 0) limit = 50;
+            List<HistoryStore.Entry> history = LocationService.openHistory(context).readSince(cursor, limit + 1);
+            more = history.size() > limit;
+            for (int i = 0; i < history.size() && i < limit; i++) {
+                HistoryStore.Entry entry = history.get(i);
+                JSONObject item = new JSONObject();
+                item.put("seq", entry.seq);
+                if (entry.type == HistoryStore.TYPE_STATUS) {
+                    item.put("type", "status");
+                    item.put("data", new JSONObject(entry.data));
+                } else {
+                    item.put("type", entry.type == HistoryStore.TYPE_LINE ? "line" : "chat");
+                    item.put("data", entry.data);
+                }
+                entries.put(item);
+                cursor = entry.seq;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "readHistorySince failed", e);
+        }
+        page.put("entries", entries);
+        page.put("cursor", cursor);
+        page.put("more", more);
+        return page;
+    }
+
+    // Entries up to the cursor are cleared, newer ones are kept
+    private void acknowledgeHistory(long cursor) {
+        Context context = cordova.getActivity().getApplicationContext();
+        try {
+            LocationService.openHistory(context).acknowledge(cursor);
+        } catch (IOException e) {
+            Log.e(TAG, "acknowledgeHistory failed", e);
+        }
     }
 
     private SharedPreferences getSharedPreferences() {
@@ -122,55 +213,221 @@ public class LocationProviderPlugin extends CordovaPlugin {
         return context.getSharedPreferences(LocationService.PREFS_NAME, Context.MODE_PRIVATE);
     }
 
+    // Answers the callback from the location engine thread, no thread waits for the fix
     private class MyOwnLocationResult extends MyLocation.LocationResult {
-        private final CountDownLatch locationLatch = new CountDownLatch(1);
-        private Location location = null;
+        private final CallbackContext callback;
+        private MyLocation request = null;
+        private String path = null;
+
+        MyOwnLocationResult(CallbackContext callback) {
+            this.callback = callback;
+        }
 
         @Override
         public void gotLocation(Location location)
         {
-            this.location = location;
-            locationLatch.countDown(); // release await in getJsonLocation
+            if (request != null) {
+                synchronized (pendingRequests) {
+                    pendingRequests.remove(request);
+                }
+            }
+            try {
+                if (location == null) {
+                    JSONObject error = new JSONObject();
+                    error.put("message", "generic location provider failure");
+                    error.put("code", -1);
+                    callback.error(error);
+                } else {
+                    callback.success(getJsonOwnLocation(location, path));
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "own position, json failed", e);
+            }
         }
 
         @Override
         public void setInDeepSleepTrue() {}
         @Override
         public void setPowerSaveTrue() {}
+        @Override
+        public void setPath(String path) {
+            this.path = path;
+        }
+    }
 
-        public JSONObject getJsonOwnLocation(int timeout) throws JSONException, InterruptedException
-        {
-            locationLatch.await(timeout, TimeUnit.SECONDS);
-            JSONObject loc = new JSONObject();
-            JSONObject coords = new JSONObject();
-            if (location == null) throw new InterruptedException();
-            coords.put("latitude", location.getLatitude());
-            coords.put("longitude", location.getLongitude());
-            coords.put("accuracy", round(location.getAccuracy()));
-            coords.put("altitude", round(location.getAltitude()));
-            coords.put("heading", round(location.getBearing()));
-            coords.put("speed", round(location.getSpeed()));
-            loc.put("coords", coords);
-            loc.put("timestamp", location.getTime());
-            return loc;
-        }
-    }
-
-    private JSONObject getOwnPosition(JSONObject config)
+    // One engine subscriber for all watchOwnPosition calls, the provider is registered with
+    // the smallest interval and distance of the watches and each watch gets only the fixes
+    // which meet its own interval and distance
+    private class OwnPositionWatch implements LocationEngine.Subscriber {
+        private final Map<String, Watch> watches = new HashMap<String, Watch>();
+
+        synchronized void put(String watchId, CallbackContext callback, long interval, long distance) {
+            watches.put(watchId, new Watch(callback, interval, distance));
+        }
+
+        synchronized CallbackContext remove(String watchId) {
+            Watch watch = watches.remove(watchId);
+            return watch != null ? watch.callback : null;
+        }
+
+        synchronized boolean isEmpty() {
+            return watches.isEmpty();
+        }
+
+        synchronized void clear() {
+            watches.clear();
+        }
+
+        @Override
+        public synchronized long getInterval() {
+            long interval = Long.MAX_VALUE;
+            for (Watch watch : watches.values()) interval = Math.min(interval, watch.interval);
+            return interval;
+        }
+
+        @Override
+        public synchronized float getDistance() {
+            long distance = Long.MAX_VALUE;
+            for (Watch watch : watches.values()) distance = Math.min(distance, watch.distance);
+            return distance;
+        }
+
+        @Override
+        public void onLocation(Location location) {
+            List<CallbackContext> watchers = new ArrayList<CallbackContext>();
+            synchronized (this) {
+                for (Watch watch : watches.values())
+                    if (watch.accept(location)) watchers.add(watch.callback);
+            }
+            if (watchers.isEmpty()) return;
+            try {
+                JSONObject position = getJsonOwnLocation(location, null);
+                for (CallbackContext watcher : watchers) {
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, position);
+                    result.setKeepCallback(true);
+                    watcher.sendPluginResult(result);
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "watch position, json failed", e);
+            }
+        }
+    }
+
+    private static class Watch {
+        final CallbackContext callback;
+        final long interval; // ms
+        final long distance; // m
+        Location last = null;
+
+        Watch(CallbackContext callback, long interval, long distance) {
+            this.callback = callback;
+            this.interval = interval;
+            this.distance = distance;
+        }
+
+        // The first fix and then the ones at least interval and distance from the last sent one
+        boolean accept(Location location) {
+            if (last != null && (location.getTime() - last.getTime() < interval || location.distanceTo(last) < distance))
+                return false;
+            last = location;
+            return true;
+        }
+    }
+
+    // path: strategy.stage.provider which produced the location, null = not known
+    private static JSONObject getJsonOwnLocation(Location location, String path) throws JSONException
+    {
+        JSONObject loc = new JSONObject();
+        JSONObject coords = new JSONObject();
+        coords.put("latitude", location.getLatitude());
+        coords.put("longitude", location.getLongitude());
+        coords.put("accuracy", round(location.getAccuracy()));
+        coords.put("altitude", round(location.getAltitude()));
+        coords.put("heading", round(location.getBearing()));
+        coords.put("speed", round(location.getSpeed()));
+        loc.put("coords", coords);
+        loc.put("timestamp", location.getTime());
+        if (path != null) loc.put("path", path);
+        return loc;
+    }
+
+    private void getOwnPosition(JSONObject config, CallbackContext callback)
     {
         Log.d(TAG, "getOwnPosition");
         Context ctx = cordova.getActivity().getApplicationContext();
         int accuracy = config.optInt("accuracy",50);
         int timeout = config.optInt("timeout",60);
-        MyOwnLocationResult myLocationResult = new MyOwnLocationResult();
-        try {
-            new MyLocation(ctx, myLocationResult, accuracy, timeout).start();
-            return myLocationResult.getJsonOwnLocation(timeout + 2);
-        } catch (Exception e)
-        {
-            Log.e(TAG, "Own position exception ", e);
-            return null;
+        long maximumAge = config.optLong("maximumAge", 0); // ms, 0 = a fresh fix as in Geolocation API
+        AcquisitionModel.attach(ctx.getFilesDir());
+        Metrics.attach(ctx.getFilesDir());
+        MyOwnLocationResult myLocationResult = new MyOwnLocationResult(callback);
+        Location cached = LocationCache.get(accuracy, maximumAge);
+        if (cached != null) {
+            myLocationResult.setPath("cache");
+            myLocationResult.gotLocation(cached);
+            return;
         }
+        MyLocation request = new MyLocation(ctx, myLocationResult, accuracy, timeout,
+                config.optString("strategy", ProviderStrategy.ACCURATE));
+        myLocationResult.request = request;
+        synchronized (pendingRequests) {
+            pendingRequests.add(request);
+        }
+        request.start();
+    }
+
+    // options: interval (ms, default 5000) and distance (m, default 0) between the fixes
+    private void watchOwnPosition(String watchId, JSONObject options, CallbackContext callback)
+    {
+        Log.d(TAG, "watchOwnPosition " + watchId);
+        long interval = options != null ? options.optLong("interval", 5000) : 5000;
+        long distance = options != null ? options.optLong("distance", 0) : 0;
+        ownPositionWatch.put(watchId, callback, interval, distance);
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callback.sendPluginResult(result);
+        // Subscribing again registers the provider with the new smallest interval
+        LocationEngine.getInstance(cordova.getActivity().getApplicationContext()).subscribe(ownPositionWatch);
+    }
+
+    private void clearWatch(String watchId)
+    {
+        Log.d(TAG, "clearWatch " + watchId);
+        LocationEngine engine = LocationEngine.getInstance(cordova.getActivity().getApplicationContext());
+        CallbackContext callback = ownPositionWatch.remove(watchId);
+        if (callback != null) { // release the kept watch callback
+            PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+            result.setKeepCallback(false);
+            callback.sendPluginResult(result);
+        }
+        if (ownPositionWatch.isEmpty())
+            engine.unsubscribe(ownPositionWatch);
+        else
+            engine.subscribe(ownPositionWatch);
+    }
+
+    // The page is gone, its callbacks are not answered anymore
+    private void cancelOwnPositions()
+    {
+        LocationEngine engine = LocationEngine.getInstance(cordova.getActivity().getApplicationContext());
+        ownPositionWatch.clear();
+        engine.unsubscribe(ownPositionWatch);
+        synchronized (pendingRequests) {
+            for (MyLocation request : pendingRequests) engine.remove(request);
+            pendingRequests.clear();
+        }
+    }
+
+    @Override
+    public void onReset()
+    {
+        cancelOwnPositions();
+    }
+
+    @Override
+    public void onDestroy()
+    {
+        cancelOwnPositions();
     }
 
     private void startService(String notification) {
@@ -181,4 +438,16 @@ public class LocationProviderPlugin extends CordovaPlugin {
         serviceIntent.setClassName(context, "com.tonikorin.cordova.plugin.LocationProvider.LocationService");
         context.startService(serviceIntent);
     }
+
+    // The session runs in the location service, which is in the foreground while tracking
+    private void startTracking(String command, String teamId, String options) {
+        Log.d(TAG, "tracking " + command);
+        Context context = cordova.getActivity().getApplicationContext();
+        Intent serviceIntent = new Intent();
+        serviceIntent.putExtra("track", command);
+        serviceIntent.putExtra("teamId", teamId);
+        serviceIntent.putExtra("options", options);
+        serviceIntent.setClassName(context, "com.tonikorin.cordova.plugin.LocationProvider.LocationService");
+        context.startService(serviceIntent);
+    }
 }
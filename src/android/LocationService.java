@@ -25,28 +25,38 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.location.Location;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.SystemClock;
 import android.util.Log;
 import org.json.JSONObject;
 import org.json.JSONArray;
 import org.json.JSONException;
 
-import java.net.HttpURLConnection;
-import java.util.Calendar;
-import java.net.URL;
-import javax.net.ssl.HttpsURLConnection;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.net.HttpURLConnection;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.Date;
-import java.text.SimpleDateFormat;
 
 import com.tonikorin.cordova.plugin.LocationProvider.MyLocation;
 import com.tonikorin.cordova.plugin.LocationProvider.MyLocation.LocationResult;
@@ -54,54 +64,132 @@ import com.tonikorin.cordova.plugin.LocationProvider.MyLocation.LocationResult;
 import static android.content.pm.ServiceInfo.FOREGROUND_SERVICE_TYPE_LOCATION;
 import static java.lang.Math.*;
 
-public class LocationService extends IntentService
+public class LocationService extends Service
 {
     private static final String TAG = "LocationService";
-    private final MyLocationResult myLocationResult = new MyLocationResult();
-    private JSONObject config = null;
+    private static final ExecutorService postExecutor = Executors.newCachedThreadPool();
+    private static final QueryDispatcher dispatcher = new QueryDispatcher(4, 2);
+    private ServiceConfig applied = null; // the configuration of the process wide settings
+    private int runningQueries = 0;
+    private int lastStartId = 0;
     private Context myContext;
+    private final Map<String, TrackingSession> trackingSessions = new HashMap<String, TrackingSession>();
     public static final String PREFS_NAME = "LocationService";
     public static final String CONFIG_NAME  = "config";
     public static final String HISTORY_NAME = "history";
+    private static final String TOKEN_STATE = "token:";
+    private static final String TOKEN_TIME = "tokenTime:";
+    private static final long TOKEN_MAX_AGE_MS = 7 * 24 * 3600 * 1000L; // registered again on a token update after this
     private static final String ALIVE    = "ALIVE";
     private static final String POSITION = "POSITION";
     private static final String FAILURE  = "FAILURE";
     private static final String RESERVED = "RESERVED";
     private static final String CHAT = "CHAT";
     private static final String LOCATE = "LOCATE";
+    private static final String TRACK = "TRACK";
+    private static final String UNCHANGED = "UNCHANGED";
+    private static final int MAX_TRACK_BATCH = 100;
     private static final String ME = "\u29bf";
     private static final String BLOCKING = "\u26d4";
 
-    public LocationService() {
-        super("LocationService");
+    @Override
+    public IBinder onBind(Intent intent)
+    {
+        return null;
     }
 
-    // The IntentService calls this method from the default worker thread with the intent that
-    // started the service. When this method returns, IntentService stops the service.
+    // Each intent is handled by the dispatcher in its own worker thread, so independent queries
+    // run concurrently. The service stops itself when the last running query has completed.
     @Override
+    public int onStartCommand(final Intent intent, int flags, final int startId)
+    {
+        synchronized (this) {
+            runningQueries++;
+            lastStartId = startId;
+        }
+        dispatcher.dispatch(getDispatchKey(intent), new Runnable() {
+            public void run() {
+                try {
+                    onHandleIntent(intent);
+                } finally {
+                    queryCompleted();
+                }
+            }
+        });
+        return START_NOT_STICKY;
+    }
+
+    private synchronized void queryCompleted()
+    {
+        runningQueries--;
+        if (runningQueries == 0)
+            stopSelf(lastStartId); // no-op if a newer intent has arrived meanwhile
+    }
+
+    // Deferred work keeps the service running like a query until it has been run
+    private void runDeferred(String key, long delayMs, final Runnable task)
+    {
+        synchronized (this) {
+            runningQueries++;
+        }
+        boolean scheduled = DeferredScheduler.schedule(key, delayMs, postExecutor, new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    queryCompleted();
+                }
+            }
+        });
+        if (!scheduled) queryCompleted(); // merged into the pending one
+    }
+
+    // Queries of the same team share the per team concurrency limit
+    private String getDispatchKey(Intent intent)
+    {
+        if (intent == null || intent.getExtras() == null) return null;
+        String msgJsonStr = intent.getExtras().getString("data");
+        if (msgJsonStr == null) return null;
+        try {
+            return new JSONObject(msgJsonStr).optString("teamId", "");
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    // Called from a dispatcher worker thread with the intent that started the service.
     protected void onHandleIntent(Intent intent)
     {
         try
         {
             myContext = LocationService.this;
-            // read the configuration
-            if (this.config == null)
-            {
-                String jsonString = myContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getString(CONFIG_NAME, "{}");
-                config = new JSONObject(jsonString);
-            }
+            Metrics.attach(getFilesDir());
+            // compiled configuration is shared until setConfiguration installs a new one, the
+            // intent is handled with the one it got here even if a new one is installed meanwhile
+            long start = SystemClock.elapsedRealtime();
+            ServiceConfig config = loadConfig(myContext);
+            Metrics.record("configLoad", SystemClock.elapsedRealtime() - start);
+            applyConfig(config);
+            if (intent == null) return;
             // get the input message from intent
             Bundle extras = intent.getExtras();
             String msgJsonStr = extras.getString("data"); // own "data" property inside "data" property
             String time = extras.getString("time", "");
+            String track = extras.getString("track");
+            if (track != null) {
+                handleTracking(config, track, extras.getString("teamId", ""), extras.getString("options", "{}"));
+                return;
+            }
             if (msgJsonStr != null) {
                 JSONObject messageIn = new JSONObject(msgJsonStr);
-                handleLocationQuery(messageIn, time);
+                long queryStart = SystemClock.elapsedRealtime();
+                handleLocationQuery(config, messageIn, time);
+                Metrics.record("query", SystemClock.elapsedRealtime() - queryStart);
                 return;
             } else {
                 String pushToken = extras.getString("regid");
                 if (pushToken != null){
-                    handlePushTokenUpdates(pushToken);
+                    handlePushTokenUpdates(config, pushToken);
                     return;
                 }
             }
@@ -113,91 +201,154 @@ public class LocationService extends IntentService
         }
     }
 
-    private void handleLocationQuery(JSONObject messageIn, String time) throws JSONException, IOException
+    // Process wide settings of the configuration, once per installed configuration
+    private synchronized void applyConfig(ServiceConfig config)
+    {
+        if (config == applied) return;
+        applied = config;
+        AcquisitionModel.attach(getFilesDir());
+        AcquisitionModel.setPercentile(config.getTimeoutPercentile());
+        PassiveCollector.setMaxAge(config.getPassiveMaxAge() * 1000L);
+        LocationEngine.getInstance(myContext).setPassive(config.isPassive());
+        dispatcher.setTeamLimit(config.getTeamConcurrency());
+    }
+
+    static ServiceConfig loadConfig(Context context) throws JSONException
+    {
+        ServiceConfig compiled = ServiceConfig.getCurrent();
+        if (compiled != null) return compiled;
+        String jsonString = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getString(CONFIG_NAME, "{}");
+        return ServiceConfig.installIfAbsent(ServiceConfig.compile(jsonString));
+    }
+
+    private void handleLocationQuery(ServiceConfig config, JSONObject messageIn, String time) throws JSONException, IOException
     {
         Log.d(TAG, "Handle location query...");
-        String ownName = config.optString("member", "");
-        JSONObject teams = config.optJSONObject("teams");
-        String teamName;
-        String teamPassword;
-        String teamSecret;
-        String teamHost;
-        JSONObject team = null;
-        if(teams != null)
-            team = teams.optJSONObject(messageIn.optString("teamId"));
-        if (team != null) {
-            teamName = team.optString("name", "");
-            teamPassword = team.optString("password", "");
-            ownName = team.optString("member", ownName);
-            teamHost = team.optString("host", "");
-            teamHost = messageIn.optString("host", teamHost);
-            teamSecret = team.optString("s");
-        }
-        else
+        ServiceConfig.Team team = config.getTeam(messageIn.optString("teamId"));
+        if (team == null)
             return; // => URI hanging in PostServer
+        String ownName = team.getMember();
+        String teamName = team.getName();
+        String queryHost = messageIn.optString("host", null);
         String msgType = messageIn.optString("messageType", LOCATE);
         // Create Messaging Server interface
-        String messageUrl = config.optString("messageUrl", "").replace("{host}", teamHost);
-        Integer version = config.optInt("version", 1609);
-        MessageServer msgServer = new MessageServer(ownName, teamName, teamPassword, teamSecret, messageUrl, version);
+        String messageUrl = team.getMessageUrl(config, queryHost);
+        MessageServer msgServer = new MessageServer(config, ownName, teamName, team.getPassword(), team.getSecret(), messageUrl);
+        msgServer.openChannel(team.getChannelUrl(config, queryHost), queryHost != null ? queryHost : team.getHost());
         if (messageIn.optString("memberName").equals(ownName))
         {
             updateLocateHistory(messageIn,true, msgType, time);
             msgServer.post(RESERVED);
-            SystemClock.sleep(5000);// 5 sec delay
-            String pushUrl = config.optString("pushUrl", "").replace("{host}", teamHost);
-            String uuid = config.optString("uuid", "");
-            msgServer.updatePushToken(ownName, teamName, config.optString("token", ""), uuid, pushUrl);
+            // Token refresh 5 sec later without holding the worker, refreshes of the team are merged
+            final MessageServer pushServer = new MessageServer(config);
+            final String member = ownName;
+            final String name = teamName;
+            final String pushUrl = team.getPushUrl(config, queryHost);
+            final ServiceConfig current = config;
+            runDeferred("token:" + teamName + "@" + pushUrl, 5000, new Runnable() {
+                public void run() {
+                    try {
+                        pushServer.updatePushToken(member, name, current.getToken(), current.getUuid(), pushUrl);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Delayed token refresh exception ", e);
+                    }
+                }
+            });
+            return;
+        }
+        // Team schedule is precomputed in the compiled configuration
+        boolean blocked = team.isBlocked(System.currentTimeMillis());
+        msgServer.addBlockedField(blocked);
+        if(blocked || CHAT.equals(msgType)) { // skip giving your location
+            Metrics.count(blocked ? "query.blocked" : "query.chat");
+            updateLocateHistory(messageIn,blocked, msgType, time);
+            msgServer.post(ALIVE);
             return;
         }
-        // Read extra team configuration (e.g. icon and schedule)
-        TeamConfig cTeam = new TeamConfig(config, teamName);
-        // Store details about location query
-        updateLocateHistory(messageIn,cTeam.isBlocked(), msgType, time);
-        msgServer.addBlockedField(cTeam.isBlocked());
-        msgServer.post(ALIVE);
-        if(cTeam.isBlocked() || CHAT.equals(msgType)) return; // skip giving your location
+        // Stationary device, the previous POSITION is still valid without a location query
+        int accuracy = messageIn.optInt("accuracy",50);
+        Fix previous = PositionMemory.get(teamName);
+        if (config.isMotionHint()) {
+            MotionHint motion = MotionHint.getInstance(myContext);
+            motion.start();
+            if (previous != null && previous.accuracy <= accuracy && motion.isStationarySince(previous.time)
+                    && System.currentTimeMillis() - previous.time <= config.getUnchangedMaxAge() * 1000L) {
+                Metrics.count("query.stationary");
+                updateLocateHistory(messageIn, false, msgType, time);
+                msgServer.post(ALIVE);
+                msgServer.postUnchanged(team, previous, null);
+                return;
+            }
+        }
+        // Location acquisition does not wait for ALIVE and history update
+        Future<?> alive = null;
+        PositionStream stream = null;
         try
         {
             //Log.d(TAG, "myContext: " + myContext.getPackageName());
-            foregroundServicePriority();
-            int timeout = config.optInt("timeout",60);
-            new MyLocation(myContext, myLocationResult, messageIn.optInt("accuracy",50), timeout).start();
-            JSONObject location = myLocationResult.getJsonLocation(timeout+2);
-            //Log.d(TAG, "Background position accuracy: " + location.optInt("accuracy"));
-            msgServer.addIconField(cTeam.getIcon());
-            msgServer.addTrackerOffField(cTeam.getTrackerOff());
-            msgServer.post(POSITION, location.toString());
+            foregroundServicePriority("Your location queried");
+            int timeout = config.getTimeout();
+            MyLocationResult myLocationResult = new MyLocationResult();
+            long maxAge = config.getCacheMaxAge() * 1000L;
+            alive = msgServer.postAsync(ALIVE);
+            if (config.isProgressive()) // POSITION refinements while waiting for the accurate fix
+                stream = myLocationResult.stream = new PositionStream(msgServer, alive, myLocationResult, team, config.getProgressInterval() * 1000L);
+            SharedLocationQuery.request(myContext, myLocationResult, accuracy, timeout, maxAge, team.getStrategy());
+            updateLocateHistory(messageIn, false, msgType, time);
+            Fix location = myLocationResult.getFix(timeout+2);
+            //Log.d(TAG, "Background position accuracy: " + location.accuracy);
+            awaitPost(alive); // POSITION always after ALIVE
+            if (stream != null) {
+                stream.complete(location);
+                PositionMemory.remember(teamName, location);
+            } else if (PositionMemory.isUnchanged(previous, location, config.getUnchangedDistance(),
+                    config.getUnchangedAccuracy(), config.getUnchangedMaxAge() * 1000L)) {
+                Metrics.count("query.unchanged");
+                msgServer.postUnchanged(team, previous, location);
+            } else {
+                msgServer.postPosition(team, location, 0, false);
+                PositionMemory.remember(teamName, location);
+            }
         }
         catch (Exception e)
         {
             Log.e(TAG, "LocationProvider exception ", e);
-            msgServer.post(FAILURE, e.getMessage());
+            Metrics.count("query.failure");
+            if (stream != null) stream.cancel();
+            awaitPost(alive);
+            msgServer.postFailure(e.getMessage());
         }
         Log.d(TAG, "Handle location query...completed!");
     }
 
+    private void awaitPost(Future<?> post)
+    {
+        if (post == null) return;
+        try {
+            post.get();
+        } catch (Exception e) {
+            Log.e(TAG, "Async POST exception ", e);
+        }
+    }
+
     private String getDateAndTimeString(long utcTime)
     {
-        Date date = new Date(utcTime);
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        return sdf.format(date);
+        return MessageWriter.get().formatDate(utcTime);
     }
 
     private void updateLocateHistory(JSONObject messageIn, boolean blocked, String msgType, String time) throws JSONException
-    {   // Read current history
-        SharedPreferences sp = myContext.getSharedPreferences(LocationService.PREFS_NAME, Context.MODE_PRIVATE);
-        String historyJsonStr = sp.getString(LocationService.HISTORY_NAME, "{}");
-        JSONObject history = new JSONObject(historyJsonStr);
+    {
+        HistoryStore history;
+        try {
+            history = openHistory(myContext);
+        } catch (IOException e) {
+            Log.e(TAG, "History store exception ", e);
+            return;
+        }
         if(CHAT.equals(msgType)){ // CHAT history, save hole message
-            JSONArray chatMessages = history.optJSONArray("chatMessages");
-            if (chatMessages == null) chatMessages = new JSONArray();
             //Log.d(TAG, "CHAT history TIME: " + time);
             messageIn.put("time",Long.parseLong(time));
-            chatMessages.put(messageIn.toString());
-            if (chatMessages.length() > 100)
-                chatMessages.remove(0); // store only last 100 chat messages
-            history.put("chatMessages", chatMessages);
+            history.append(HistoryStore.TYPE_CHAT, messageIn.toString());
         } else {// Current LOCATE
             String member = messageIn.optString("memberName", "");
             if (member.equals(ME)) return; // skip history if own query
@@ -207,29 +358,77 @@ public class LocationService extends IntentService
             updateStatus.put("team", messageIn.optString("teamId", ""));
             updateStatus.put("date", getDateAndTimeString(System.currentTimeMillis()));
             updateStatus.put("target", messageIn.optString("target", ""));
-            history.put("updateStatus", updateStatus);
             // History LOCATE lines...
-            JSONArray historyLines = history.optJSONArray("lines");
-            if (historyLines == null) historyLines = new JSONArray();
             String target;
             if (updateStatus.getString("target").equals(""))
                 target = updateStatus.optString("team");
             else
                 target = updateStatus.optString("target");
             String historyLine = updateStatus.getString("member") + " (" + target + ") " + updateStatus.getString("date") + "\n";
-            historyLines.put(historyLine);
-            if (historyLines.length() > 200)
-                historyLines.remove(0); // store only last 200 locate queries
-            history.put("lines", historyLines);
-        }
-        // Save new history
-        SharedPreferences.Editor editor = sp.edit();
-        editor.putString(LocationService.HISTORY_NAME, history.toString());
-        editor.commit();
-        //Log.d(TAG, "history:" + history.toString());
+            synchronized (history) { // status and line together
+                history.append(HistoryStore.TYPE_STATUS, updateStatus.toString());
+                history.append(HistoryStore.TYPE_LINE, historyLine);
+            }
+        }
     }
 
-    private void handlePushTokenUpdates(String pushToken) {
+    // History store in the app files, the old SharedPreferences history is moved into it once
+    static HistoryStore openHistory(Context context) throws IOException
+    {
+        HistoryStore history = HistoryStore.open(context.getFilesDir());
+        synchronized (history) {
+            SharedPreferences sp = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            String historyJsonStr = sp.getString(HISTORY_NAME, null);
+            if (historyJsonStr == null) return history;
+            try {
+                JSONObject old = new JSONObject(historyJsonStr);
+                JSONArray chatMessages = old.optJSONArray("chatMessages");
+                for (int i = 0; chatMessages != null && i < chatMessages.length(); i++)
+                    history.append(HistoryStore.TYPE_CHAT, chatMessages.getString(i));
+                JSONArray lines = old.optJSONArray("lines");
+                for (int i = 0; lines != null && i < lines.length(); i++)
+                    history.append(HistoryStore.TYPE_LINE, lines.getString(i));
+                JSONObject updateStatus = old.optJSONObject("updateStatus");
+                if (updateStatus != null)
+                    history.append(HistoryStore.TYPE_STATUS, updateStatus.toString());
+            } catch (JSONException e) {
+                Log.e(TAG, "Old history dropped ", e);
+            }
+            sp.edit().remove(HISTORY_NAME).commit();
+        }
+        return history;
+    }
+
+    // Starts, restarts with new options or stops the tracking session of the team
+    private void handleTracking(ServiceConfig config, String command, String teamId, String optionsJsonStr) throws JSONException
+    {
+        Log.d(TAG, "Handle tracking " + command + " " + teamId);
+        ServiceConfig.Team team = config.getTeam(teamId);
+        synchronized (trackingSessions) {
+            TrackingSession session = trackingSessions.remove(teamId);
+            if (session != null) session.stop();
+            if (!command.equals("start") || team == null) return;
+            JSONObject options = new JSONObject(optionsJsonStr);
+            foregroundServicePriority("Location tracking on");
+            session = new TrackingSession(config, team, options.optInt("interval", 30) * 1000L,
+                    (float) options.optDouble("distance", 20), options.optInt("flushInterval", 60) * 1000L);
+            trackingSessions.put(teamId, session);
+            session.start();
+        }
+    }
+
+    // Upload delay of buffered track fixes: the base interval when charging, longer on battery,
+    // low battery or power save, and longest in deep sleep where the network comes only in
+    // maintenance windows anyway.
+    static long getTrackFlushDelay(long baseMs, int batteryPct, boolean charging, boolean deepSleep, boolean powerSave)
+    {
+        if (deepSleep) return baseMs * 8;
+        if (charging) return baseMs;
+        if (powerSave || (batteryPct >= 0 && batteryPct <= 20)) return baseMs * 4;
+        return baseMs * 2;
+    }
+
+    private void handlePushTokenUpdates(final ServiceConfig config, final String pushToken) {
         Log.d(TAG, "Handle push token updates...");
         try {
             if (android.os.Build.VERSION.SDK_INT >= 29) {
@@ -243,20 +442,50 @@ public class LocationService extends IntentService
                         .setContentText("Push token updated").build();
                 startForeground(999, notification);
             }
-            JSONObject teams = config.optJSONObject("teams");
-            if (teams != null) {
-                String uuid = config.optString("uuid", "");
-                MessageServer pushServer = new MessageServer();
-                JSONArray teamNames = teams.names();
-                for (int i = 0; i < teamNames.length(); ++i) {
-                    JSONObject team = teams.optJSONObject(teamNames.getString(i));
-                    String teamName = team.optString("name", "");
-                    String ownName = team.optString("member", "");
-                    String teamHost = team.optString("host", "");
-                    String pushUrl = config.optString("pushUrl", "").replace("{host}", teamHost);
-                    pushServer.updatePushToken(ownName, teamName, pushToken, uuid, pushUrl);
+            // Teams registered with this token within the max age are skipped, the rest grouped by push server
+            final String uuid = config.getUuid();
+            final SharedPreferences sp = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            long now = System.currentTimeMillis();
+            Map<String, List<ServiceConfig.Team>> hosts = new LinkedHashMap<String, List<ServiceConfig.Team>>();
+            for (ServiceConfig.Team team : config.getTeams()) {
+                String pushUrl = team.getPushUrl(config, null);
+                long registered = sp.getLong(TOKEN_TIME + team.getName(), 0);
+                if (getTokenRegistration(team, pushToken, uuid, pushUrl).equals(sp.getString(TOKEN_STATE + team.getName(), ""))
+                        && registered <= now && now - registered < TOKEN_MAX_AGE_MS)
+                    continue;
+                List<ServiceConfig.Team> group = hosts.get(pushUrl);
+                if (group == null) {
+                    group = new ArrayList<ServiceConfig.Team>();
+                    hosts.put(pushUrl, group);
+                }
+                group.add(team);
+            }
+            // One request per push server, the servers in parallel
+            List<Future<List<ServiceConfig.Team>>> results = new ArrayList<Future<List<ServiceConfig.Team>>>();
+            for (final Map.Entry<String, List<ServiceConfig.Team>> host : hosts.entrySet()) {
+                results.add(postExecutor.submit(new Callable<List<ServiceConfig.Team>>() {
+                    public List<ServiceConfig.Team> call() throws Exception {
+                        return new MessageServer(config).updatePushTokens(host.getValue(), pushToken, uuid, host.getKey());
+                    }
+                }));
+            }
+            SharedPreferences.Editor editor = sp.edit();
+            for (Future<List<ServiceConfig.Team>> result : results) {
+                List<ServiceConfig.Team> registered;
+                try {
+                    registered = result.get();
+                } catch (Exception e) {
+                    Log.e(TAG, "Push token update exception ", e);
+                    continue;
+                }
+                // only the delivered teams, failed ones are in the outbox and tried again on next token update
+                for (ServiceConfig.Team team : registered) {
+                    String pushUrl = team.getPushUrl(config, null);
+                    editor.putString(TOKEN_STATE + team.getName(), getTokenRegistration(team, pushToken, uuid, pushUrl));
+                    editor.putLong(TOKEN_TIME + team.getName(), now);
                 }
             }
+            editor.apply();
         }
         catch (Exception e)
         {
@@ -264,7 +493,12 @@ public class LocationService extends IntentService
         }
     }
 
-    private void foregroundServicePriority() {
+    private static String getTokenRegistration(ServiceConfig.Team team, String pushToken, String uuid, String pushUrl)
+    {
+        return team.getMember() + "|" + pushToken + "|" + uuid + "|" + pushUrl;
+    }
+
+    private void foregroundServicePriority(String text) {
         if (android.os.Build.VERSION.SDK_INT < 29) {
             return;
         }
@@ -277,7 +511,7 @@ public class LocationService extends IntentService
             ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).createNotificationChannel(channel);
             Notification notification = new Notification.Builder(this, CHANNEL_ID)
                     .setContentTitle(getAppName())
-                    .setContentText("Your location queried").build();
+                    .setContentText(text).build();
             startForeground(9999, notification, FOREGROUND_SERVICE_TYPE_LOCATION);
         }
         catch (Exception e)
@@ -297,24 +531,30 @@ public class LocationService extends IntentService
 
     private class MessageServer
     {
-        private HttpURLConnection con;
-        private JSONObject messageOut;
-        private OutputStream os;
+        private final ServiceConfig config;
+        private Map<String, Object> messageOut;
+        private Object content = null; // String, Fix or list of Fix
+        private int wire = MessageWriter.WIRE_STRING;
         private String xTeam;
         private String xPass;
         private String xSecret;
         private String xChannel;
         private String urlString;
         private Integer version; // app version
+        private MessageChannel channel = null;
         private static final String TOKEN = "TOKEN";
+        // Fields of the POSITION and UNCHANGED messages, a FAILURE of the same query has none of them
+        private final String[] positionFields = {"icon", "trackerOff", "seq", "final", "ref", "mTime", "accuracy", "age", "stationary"};
         //private InputStream is;
 
-        public MessageServer(){
+        public MessageServer(ServiceConfig config){
+            this.config = config;
         }
 
-        public MessageServer(String ownName, String teamName, String teamPassword, String teamSecret,String urlMessageServer, Integer version) throws JSONException, IOException
+        public MessageServer(ServiceConfig config, String ownName, String teamName, String teamPassword, String teamSecret,String urlMessageServer)
         {  // Create message template for location data
-            this.messageOut = new JSONObject();
+            this.config = config;
+            this.messageOut = new LinkedHashMap<String, Object>();
             this.messageOut.put("memberName", ownName);
             this.messageOut.put("teamId", teamName);
             this.xTeam = teamName;
@@ -322,96 +562,601 @@ public class LocationService extends IntentService
             this.xSecret = teamSecret;
             this.xChannel = "/channel/" + teamName + ":" + teamPassword;
             this.urlString = urlMessageServer;
-            this.version = version;
+            this.version = config.getVersion();
+            this.wire = config.getWire();
         }
 
-        public void updatePushToken(String ownName, String teamName, String pushToken, String uuid, String urlPushServer) throws JSONException, IOException
+        public boolean updatePushToken(String ownName, String teamName, String pushToken, String uuid, String urlPushServer) throws JSONException, IOException
         {   // Create message template for push server and post it
-            this.messageOut = new JSONObject();
-            this.messageOut.put("name", ownName);
-            this.messageOut.put("team", teamName);
-            this.messageOut.put("token", pushToken);
-            this.messageOut.put("tokenType", 3); // GCM
-            this.messageOut.put("uuid", uuid);
+            this.messageOut = getTokenMessage(ownName, teamName, pushToken, uuid);
+            this.content = null;
             this.urlString = urlPushServer;
-            this.post(TOKEN);
+            return this.post(TOKEN);
+        }
+
+        // Registers the token of several teams on the same push server, in one request when the
+        // server accepts batches. Returns the teams whose registration was delivered.
+        public List<ServiceConfig.Team> updatePushTokens(List<ServiceConfig.Team> teams, String pushToken, String uuid, String urlPushServer) throws JSONException, IOException
+        {
+            if (teams.size() == 1 || !config.isBatch()) {
+                List<ServiceConfig.Team> delivered = new ArrayList<ServiceConfig.Team>();
+                for (ServiceConfig.Team team : teams)
+                    if (updatePushToken(team.getMember(), team.getName(), pushToken, uuid, urlPushServer))
+                        delivered.add(team);
+                return delivered;
+            }
+            Log.d(TAG, "POST: " + TOKEN + " x " + teams.size());
+            this.urlString = urlPushServer;
+            Map<String, String> headers = getHeaders();
+            headers.put("X-batch", String.valueOf(teams.size()));
+            List<Map<String, Object>> registrations = new ArrayList<Map<String, Object>>();
+            for (ServiceConfig.Team team : teams)
+                registrations.add(getTokenMessage(team.getMember(), team.getName(), pushToken, uuid));
+            try
+            {
+                int responseCode = HttpClient.getInstance().post(urlString, headers,
+                        getBody(MessageWriter.get().messages(registrations)));
+                Log.d(TAG, "POST response code:" + responseCode);
+                if (!Outbox.isRetryable(responseCode))
+                    return teams;
+            } catch (Exception e){
+                Log.e(TAG, "POST exception: " + e.getMessage());
+            }
+            headers.remove("X-batch");
+            for (Map<String, Object> registration : registrations)
+                queueForRetry(TOKEN, urlString, headers, MessageWriter.get().message(registration, null, MessageWriter.WIRE_STRING).toString());
+            return new ArrayList<ServiceConfig.Team>();
+        }
+
+        private Map<String, Object> getTokenMessage(String ownName, String teamName, String pushToken, String uuid)
+        {
+            Map<String, Object> message = new LinkedHashMap<String, Object>();
+            message.put("name", ownName);
+            message.put("team", teamName);
+            message.put("token", pushToken);
+            message.put("tokenType", 3); // GCM
+            message.put("uuid", uuid);
+            return message;
+        }
+
+        private Map<String, String> getHeaders()
+        {
+            Map<String, String> headers = new HashMap<String, String>();
+            putHeader(headers, "Content-Type", "application/json; charset=utf-8");
+            putHeader(headers, "Accept", "application/json");
+            putHeader(headers, "X-channel", xChannel);
+            putHeader(headers, "X-team", xTeam);
+            putHeader(headers, "X-pass", xPass);
+            putHeader(headers, "X-s", xSecret);
+            putHeader(headers, "X-version", String.valueOf(version));
+            if (wire != MessageWriter.WIRE_STRING)
+                putHeader(headers, "X-wire", String.valueOf(wire));
+            return headers;
+        }
+
+        // Persistent channel of the team on the host, url null = messages are posted
+        public void openChannel(String channelUrl, String host)
+        {
+            if (channelUrl == null) return;
+            Map<String, String> headers = getHeaders();
+            headers.remove("Content-Type");
+            headers.remove("Accept");
+            boolean secure = channelUrl.regionMatches(true, 0, "wss:", 0, 4);
+            ChannelListener listener = new ChannelListener(myContext.getApplicationContext(), xTeam, host, secure);
+            channel = MessageChannel.open(channelUrl, headers, config.getChannelIdle() * 1000L, listener);
+        }
+
+        // POSITION with the team icon and trackerOff fields, seq > 0 for progressive POSITIONs
+        public boolean postPosition(ServiceConfig.Team team, Fix fix, int seq, boolean last) throws JSONException, IOException
+        {
+            Request request;
+            synchronized (this) {
+                addIconField(team.getIcon());
+                addTrackerOffField(team.getTrackerOff());
+                if (seq > 0) {
+                    messageOut.put("seq", seq);
+                    messageOut.put("final", last);
+                }
+                this.content = fix;
+                request = prepare(POSITION);
+            }
+            return send(request);
+        }
+
+        // Returns true when the server got the message, false when it was queued to the outbox
+        public boolean post(String messageType) throws JSONException, IOException
+        {
+            return send(prepare(messageType));
         }
 
-        public void post(String messageType) throws JSONException, IOException
+        // Message of the current fields. Synchronized as the progressive POSITIONs of a query are
+        // built from several threads, the network part is not, so a slow server or channel
+        // handshake does not stall the other posts of the team.
+        private synchronized Request prepare(String messageType) throws JSONException
         {
             Log.d(TAG, "POST: " + messageType);
             if( !messageType.equals(TOKEN) )// messageType property not needed in PushServer
                 messageOut.put("messageType", messageType);
+            Request request = new Request();
+            request.messageType = messageType;
+            request.urlString = urlString;
+            request.headers = getHeaders();
+            request.channel = channel;
+            request.writer = MessageWriter.get().message(messageOut, content, wire);
+            if (CompactCodec.supports(messageType) && HttpClient.getInstance().acceptsCompact(urlString))
+                request.compact = CompactCodec.encode(messageType, messageOut, content);
+            return request;
+        }
+
+        // Runs in the thread which prepared the request, the writer is the thread's own
+        private boolean send(Request request)
+        {
+            String messageType = request.messageType;
+            Map<String, String> headers = request.headers;
+            MessageWriter writer = request.writer;
+            if (!isOnline())
+            {   // deferred, the outbox job waits for the network
+                queueForRetry(messageType, request.urlString, headers, writer.toString());
+                return false;
+            }
+            long start = SystemClock.elapsedRealtime();
+            if (request.channel != null && !messageType.equals(TOKEN) && request.channel.send(writer.toString()))
+            {
+                Log.d(TAG, "Sent over channel: " + messageType);
+                Metrics.record("post." + messageType, SystemClock.elapsedRealtime() - start);
+                flushOutbox(messageType, request.urlString, headers);
+                return true;
+            }
             try
-            {   // Create connection and request
-                URL url = new URL(urlString);
-                if(url.getProtocol().equals("https"))
-                    con = (HttpsURLConnection) url.openConnection();
-                else
-                    con = (HttpURLConnection) url.openConnection();
-                con.setRequestMethod("POST");
-                con.setDoOutput(true); // = POST method
-                //con.setDoInput(true);
-                con.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-                con.setRequestProperty("Accept", "application/json");
-                con.setRequestProperty("X-channel", xChannel);
-                con.setRequestProperty("X-team", xTeam);
-                con.setRequestProperty("X-pass", xPass);
-                con.setRequestProperty("X-s", xSecret);
-                con.setRequestProperty("X-version", String.valueOf(version));
-                con.setChunkedStreamingMode(0);
-                // Send POST with JSON message as string
-                os = con.getOutputStream();
-                os.write(messageOut.toString().getBytes("UTF-8"));
-                os.flush();
-                Log.d(TAG, "POST response code:" + con.getResponseCode());
+            {   // Stream the JSON message to the connection, the connection stays in the shared pool
+                int responseCode = postCompact(request);
+                if (responseCode < 0 && messageType.equals(TRACK))
+                    responseCode = postGzip(request.urlString, headers, writer);
+                if (responseCode < 0 || responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE)
+                    responseCode = HttpClient.getInstance().post(request.urlString, headers, getBody(writer));
+                Log.d(TAG, "POST response code:" + responseCode);
+                Metrics.record("post." + messageType, SystemClock.elapsedRealtime() - start);
+                if (!Outbox.isRetryable(responseCode)) {
+                    flushOutbox(messageType, request.urlString, headers);
+                    return true;
+                }
             } catch (Exception e){
                 Log.e(TAG, "POST exception: " + e.getMessage());
-                e.printStackTrace();
             }
-            finally
-            {
-                if (os!=null) os.close();
-                if (con!=null) con.disconnect(); // connection just moved to pool
+            Metrics.count("post." + messageType + ".failure");
+            queueForRetry(messageType, request.urlString, headers, writer.toString());
+            return false;
+        }
+
+        // Compact message when the server has accepted it, -1 when JSON has to be sent
+        private int postCompact(Request request) throws IOException
+        {
+            if (request.compact == null) return -1;
+            Map<String, String> compactHeaders = new HashMap<String, String>(request.headers);
+            compactHeaders.put("Content-Type", CompactCodec.CONTENT_TYPE);
+            return HttpClient.getInstance().post(request.urlString, compactHeaders, HttpClient.bytes(request.compact));
+        }
+
+        // Track batches compress well, the outbox keeps the plain message
+        private int postGzip(String urlString, Map<String, String> headers, final MessageWriter writer) throws IOException
+        {
+            Map<String, String> gzipHeaders = new HashMap<String, String>(headers);
+            gzipHeaders.put("Content-Encoding", "gzip");
+            return HttpClient.getInstance().post(urlString, gzipHeaders, new HttpClient.Body() {
+                public void writeTo(OutputStream os) throws IOException {
+                    GZIPOutputStream gzip = new GZIPOutputStream(os, 1024);
+                    writer.writeTo(gzip);
+                    gzip.finish();
+                }
+            });
+        }
+
+        private HttpClient.Body getBody(final MessageWriter writer)
+        {
+            return new HttpClient.Body() {
+                public void writeTo(OutputStream os) throws IOException {
+                    writer.writeTo(os);
+                }
+            };
+        }
+
+        private void putHeader(Map<String, String> headers, String name, String value)
+        {
+            if (value != null) headers.put(name, value);
+        }
+
+        private void queueForRetry(String messageType, String urlString, Map<String, String> headers, String body)
+        {
+            Log.d(TAG, "POST queued to outbox: " + messageType);
+            Metrics.count("outbox.queued");
+            Outbox outbox = Outbox.open(myContext.getFilesDir());
+            outbox.add(messageType, urlString, headers, body, System.currentTimeMillis());
+            OutboxJobService.schedule(myContext, outbox);
+        }
+
+        // The server answered, so this is a good moment to deliver the queued messages. The queued
+        // ones the delivered message supersedes are dropped first, they would arrive after it.
+        private void flushOutbox(String messageType, String urlString, Map<String, String> headers)
+        {
+            final Outbox outbox = Outbox.open(myContext.getFilesDir());
+            if (outbox.size() == 0) return;
+            outbox.supersede(messageType, urlString, headers);
+            if (outbox.size() == 0) return;
+            final boolean batch = config.isBatch();
+            postExecutor.execute(new Runnable() {
+                public void run() {
+                    outbox.flush(HttpClient.getInstance(), batch, System.currentTimeMillis());
+                    OutboxJobService.schedule(myContext, outbox);
+                }
+            });
+        }
+
+        private boolean isOnline()
+        {
+            try {
+                ConnectivityManager cm = (ConnectivityManager) myContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+                NetworkInfo network = cm.getActiveNetworkInfo();
+                return network != null && network.isConnected();
+            } catch (Exception e) { // unknown state, try anyway
+                return true;
+            }
+        }
+
+        // Posts on the shared executor, so that the caller can continue e.g. with the location query
+        public Future<?> postAsync(final String messageType)
+        {
+            return postExecutor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    post(messageType);
+                    return null;
+                }
+            });
+        }
+
+        // Reference to the previous POSITION (its mTime) with the time, accuracy and age of the new
+        // fix, fix null = stationary by the motion hint and no location query was made
+        public boolean postUnchanged(ServiceConfig.Team team, Fix previous, Fix fix) throws JSONException, IOException
+        {
+            Request request;
+            synchronized (this) {
+                addIconField(team.getIcon());
+                addTrackerOffField(team.getTrackerOff());
+                messageOut.put("ref", previous.time);
+                if (fix != null) {
+                    messageOut.put("mTime", fix.time);
+                    messageOut.put("accuracy", fix.accuracy);
+                    messageOut.put("age", fix.age);
+                } else {
+                    messageOut.put("age", System.currentTimeMillis() - previous.time);
+                    messageOut.put("stationary", true);
+                }
+                this.content = null;
+                request = prepare(UNCHANGED);
+            }
+            return send(request);
+        }
+
+        public boolean postTrack(ServiceConfig.Team team, List<Fix> fixes) throws JSONException, IOException
+        {
+            Request request;
+            synchronized (this) {
+                addIconField(team.getIcon());
+                this.content = fixes;
+                request = prepare(TRACK);
             }
+            return send(request);
         }
 
-        public void post(String messageType, String content) throws JSONException, IOException
+        public boolean post(String messageType, String content) throws JSONException, IOException
         {
-            messageOut.put("content", content);
-            post(messageType);
+            Request request;
+            synchronized (this) {
+                this.content = content;
+                request = prepare(messageType);
+            }
+            return send(request);
+        }
+
+        // The error of a location query, without the fields left by the POSITIONs posted before it
+        public boolean postFailure(String error) throws JSONException, IOException
+        {
+            Request request;
+            synchronized (this) {
+                for (String field : positionFields) messageOut.remove(field);
+                this.content = error;
+                request = prepare(FAILURE);
+            }
+            return send(request);
         }
 
-        public void addIconField(String icon) throws JSONException
+        public synchronized void addIconField(String icon) throws JSONException
         {
             if (icon!=null) messageOut.put("icon", icon);
         }
 
-        public void addTrackerOffField(String trackerOff) throws JSONException
+        public synchronized void addTrackerOffField(String trackerOff) throws JSONException
         {
             if (trackerOff!=null) messageOut.put("trackerOff", trackerOff);
         }
 
-        public void addBlockedField(boolean blocked) throws JSONException
+        public synchronized void addBlockedField(boolean blocked) throws JSONException
         {
             if (blocked) messageOut.put("blocked", true);
         }
     }
 
+    /*
+     Messages of the server over a channel are handled as push messages of the team. The channel
+     is authenticated like the posts, the server by TLS and the client by the team headers, so a
+     server frame is trusted only as much as the answer to a post: it is accepted only over wss
+     and only as a LOCATE or CHAT query of the channel's own team and host, other frames are
+     ignored. The listener lives in the process wide channel, so it holds the application context.
+     */
+    static class ChannelListener implements MessageChannel.Listener
+    {
+        private final Context context;
+        private final String team;
+        private final String host;
+        private final boolean secure;
+
+        ChannelListener(Context context, String team, String host, boolean secure)
+        {
+            this.context = context;
+            this.team = team;
+            this.host = host;
+            this.secure = secure;
+        }
+
+        public void onMessage(String text)
+        {
+            if (!accepts(text)) {
+                Log.e(TAG, "Channel message ignored, team " + team);
+                Metrics.count("channel.ignored");
+                return;
+            }
+            Intent intent = new Intent();
+            intent.putExtra("data", text);
+            intent.setClassName(context, "com.tonikorin.cordova.plugin.LocationProvider.LocationService");
+            context.startService(intent);
+        }
+
+        boolean accepts(String text)
+        {
+            if (!secure) return false;
+            try {
+                JSONObject message = new JSONObject(text);
+                String type = message.optString("messageType", LOCATE);
+                String queryHost = message.optString("host", null);
+                return team != null && team.equals(message.optString("teamId"))
+                        && (queryHost == null || queryHost.equals(host))
+                        && (LOCATE.equals(type) || CHAT.equals(type));
+            } catch (JSONException e) {
+                return false;
+            }
+        }
+    }
+
+    // A message built by MessageServer.prepare, sent without holding the server
+    private class Request
+    {
+        String messageType;
+        String urlString;
+        Map<String, String> headers;
+        MessageChannel channel;
+        MessageWriter writer;
+        byte[] compact; // null = JSON
+    }
+
+    /*
+     Progressive POSITION: the first acceptable fix is posted at once and better ones follow,
+     at most one per interval. Each POSITION has a sequence number, the last one is marked final,
+     so the server can drop a refinement which arrives out of order.
+     */
+    private class PositionStream
+    {
+        private final MessageServer msgServer;
+        private final Future<?> alive;
+        private final MyLocationResult result;
+        private final ServiceConfig.Team team;
+        private final long intervalMs;
+        private final String key = "progress:" + System.identityHashCode(this);
+        private int seq = 0;
+        private long lastPost = -1;
+        private boolean finished = false;
+        private Location pending = null;
+
+        PositionStream(MessageServer msgServer, Future<?> alive, MyLocationResult result, ServiceConfig.Team team, long intervalMs)
+        {
+            this.msgServer = msgServer;
+            this.alive = alive;
+            this.result = result;
+            this.team = team;
+            this.intervalMs = intervalMs;
+        }
+
+        // Called from the location thread, the latest fix waits until the interval has passed
+        synchronized void progress(Location location)
+        {
+            if (finished) return;
+            pending = location;
+            long wait = lastPost < 0 ? 0 : lastPost + intervalMs - SystemClock.elapsedRealtime();
+            DeferredScheduler.schedule(key, Math.max(0, wait), postExecutor, new Runnable() {
+                public void run() {
+                    postPending();
+                }
+            });
+        }
+
+        private void postPending()
+        {
+            Location location;
+            int n;
+            synchronized (this) {
+                if (finished || pending == null) return;
+                location = pending;
+                pending = null;
+                n = ++seq;
+                lastPost = SystemClock.elapsedRealtime();
+            }
+            awaitPost(alive); // POSITION always after ALIVE
+            try {
+                msgServer.postPosition(team, result.toFix(location), n, false);
+            } catch (Exception e) {
+                Log.e(TAG, "Progressive POSITION exception ", e);
+            }
+        }
+
+        void complete(Fix location) throws JSONException, IOException
+        {
+            int n;
+            synchronized (this) {
+                finished = true;
+                n = ++seq;
+            }
+            msgServer.postPosition(team, location, n, true);
+        }
+
+        synchronized void cancel()
+        {
+            finished = true;
+        }
+    }
+
+    /*
+     Tracking session of a team: fixes of the shared location engine are sampled by interval and
+     distance, buffered and uploaded as TRACK batches. The first buffered fix schedules the upload,
+     its delay depends on the battery and power state. The service runs while a session is active.
+     */
+    private class TrackingSession implements LocationEngine.Subscriber
+    {
+        private final ServiceConfig.Team team;
+        private final long intervalMs;
+        private final float distance;
+        private final long flushIntervalMs;
+        private final MessageServer msgServer; // one template and channel for the session
+        private final String channelUrl;
+        private final String channelHost;
+        private final String key = "track:" + System.identityHashCode(this);
+        private final List<Fix> buffer = new ArrayList<Fix>();
+        private Location last = null;
+        private boolean stopped = false;
+
+        TrackingSession(ServiceConfig config, ServiceConfig.Team team, long intervalMs, float distance, long flushIntervalMs)
+        {
+            this.team = team;
+            this.intervalMs = intervalMs;
+            this.distance = distance;
+            this.flushIntervalMs = flushIntervalMs;
+            this.msgServer = new MessageServer(config, team.getMember(), team.getName(), team.getPassword(),
+                    team.getSecret(), team.getMessageUrl(config, null));
+            this.channelUrl = team.getChannelUrl(config, null);
+            this.channelHost = team.getHost();
+        }
+
+        public long getInterval() { return intervalMs;}
+
+        public float getDistance() { return distance;}
+
+        void start()
+        {
+            synchronized (LocationService.this) {
+                runningQueries++;
+            }
+            LocationEngine.getInstance(myContext).subscribe(this);
+            msgServer.openChannel(channelUrl, channelHost);
+        }
+
+        // The buffered fixes are uploaded at once
+        void stop()
+        {
+            LocationEngine.getInstance(myContext).unsubscribe(this);
+            synchronized (this) {
+                stopped = true;
+            }
+            postExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        flush();
+                    } finally {
+                        queryCompleted();
+                    }
+                }
+            });
+        }
+
+        // Called in the engine thread
+        public void onLocation(Location location)
+        {
+            if (last != null && (location.getTime() - last.getTime() < intervalMs || location.distanceTo(last) < distance))
+                return;
+            last = location;
+            LocationCache.put(location);
+            boolean deepSleep = MyLocation.isInDeepSleep(myContext);
+            boolean powerSave = MyLocation.isInPowerSave(myContext);
+            Fix fix = new Fix(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                    location.getAltitude(), location.getBearing(), location.getSpeed(), location.getTime(),
+                    System.currentTimeMillis() - location.getTime(), deepSleep, powerSave);
+            int size;
+            synchronized (this) {
+                if (stopped) return;
+                buffer.add(fix);
+                size = buffer.size();
+            }
+            Runnable upload = new Runnable() {
+                public void run() {
+                    flush();
+                }
+            };
+            if (size >= MAX_TRACK_BATCH)
+                postExecutor.execute(upload);
+            else
+                DeferredScheduler.schedule(key, getFlushDelay(deepSleep, powerSave), postExecutor, upload);
+        }
+
+        private long getFlushDelay(boolean deepSleep, boolean powerSave)
+        {
+            Intent battery = myContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            int batteryPct = -1;
+            boolean charging = false;
+            if (battery != null) {
+                int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+                if (level >= 0 && scale > 0) batteryPct = level * 100 / scale;
+                charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            }
+            return getTrackFlushDelay(flushIntervalMs, batteryPct, charging, deepSleep, powerSave);
+        }
+
+        private void flush()
+        {
+            List<Fix> fixes;
+            synchronized (this) {
+                if (buffer.isEmpty()) return;
+                fixes = new ArrayList<Fix>(buffer);
+                buffer.clear();
+            }
+            try {
+                msgServer.postTrack(team, fixes); // queued to the outbox when not delivered
+            } catch (Exception e) {
+                Log.e(TAG, "Track upload exception ", e);
+            }
+        }
+    }
+
     private class MyLocationResult extends LocationResult
     {
         private final CountDownLatch locationLatch = new CountDownLatch(1);
         private Location location = null;
+        private PositionStream stream = null;
         private boolean deepSleep = false;
         private boolean powerSave = false;
-        private static final int ROUND6 = 1000000;
 
         @Override
         public void gotLocation(Location location)
         {
             //Log.v(TAG,"gotLocation from " + location.getProvider());
             this.location = location;
-            locationLatch.countDown(); // release await in getJsonLocation
+            locationLatch.countDown(); // release await in getFix
         }
 
         @Override
@@ -424,100 +1169,32 @@ public class LocationService extends IntentService
             powerSave = true;
         }
 
-        public JSONObject getJsonLocation(int timeout) throws JSONException, InterruptedException
+        @Override
+        public void gotProgress(Location location)
         {
-            locationLatch.await(timeout, TimeUnit.SECONDS);
-            JSONObject loc = new JSONObject();
-            if (location == null) throw new InterruptedException();
-            loc.put("latitude", (double) round(location.getLatitude() * ROUND6) / ROUND6); // 6 decimals = 1m accuracy
-            loc.put("longitude", (double) round(location.getLongitude() * ROUND6) / ROUND6);
-            loc.put("accuracy", round(location.getAccuracy()));
-            loc.put("altitude", round(location.getAltitude()));
-            loc.put("altitudeAccuracy", "-"); // not supported in Android
-            loc.put("heading", round(location.getBearing()));
-            loc.put("speed", round(location.getSpeed()));
-            loc.put("timestamp", getDateAndTimeString(location.getTime()));
-            loc.put("mTime", location.getTime());
-            loc.put("age", System.currentTimeMillis() - location.getTime());
-            if (deepSleep) loc.put("deepSleep", 1);
-            if (powerSave) loc.put("powerSave", 1);
-            //Log.d(TAG, "Time:" + getDateAndTimeString(System.currentTimeMillis()) + " Location age:" + loc.getInt("age"));
-            return loc;
+            if (stream != null) stream.progress(location);
         }
-    }
-
-    private class TeamConfig
-    {
-        private String icon = null;
-        private String trackerOff = null;
-        private boolean blocked = false;
 
-        public TeamConfig(JSONObject conf, String teamName)
+        @Override
+        public void setPath(String path)
         {
-            JSONObject cTeams = conf.optJSONObject("cTeams");
-            JSONObject cTeam = null;
-            if(cTeams == null)
-                return;
-            else
-                cTeam = cTeams.optJSONObject(teamName);
-            if( cTeam != null){
-                icon = cTeam.optString("icon", null);
-                trackerOff = cTeam.optString("trackerOff", null);
-                long startDate = cTeam.optLong("startDate", 0); // epoch
-                long endDate = cTeam.optLong("endDate", 0);
-                int startTime = cTeam.optInt("startTime", 0); // total minutes from day start
-                int endTime = cTeam.optInt("endTime", 0);
-                String repeat = cTeam.optString("repeat", ""); // weekdays 0-6
-                blocked = isLocationBlocked(startDate, endDate, startTime, endTime, repeat);
-            }
+            Log.d(TAG, "Location path " + path);
         }
 
-        public String getIcon() { return icon;}
-
-        public String getTrackerOff() { return trackerOff;}
-
-        public boolean isBlocked() {
-            return blocked;
+        public Fix getFix(int timeout) throws InterruptedException
+        {
+            locationLatch.await(timeout, TimeUnit.SECONDS);
+            if (location == null) throw new InterruptedException();
+            return toFix(location);
         }
 
-        private boolean isLocationBlocked(long startDate, long endDate, int startTime, int endTime, String repeat)
+        public Fix toFix(Location location)
         {
-            if (startDate > 0 || endDate > 0 || !repeat.isEmpty()) {
-                Calendar c = Calendar.getInstance();
-                long time = c.getTimeInMillis();
-                if (startDate > 0) {
-                    long start = startDate + (startTime * 60 * 1000);
-                    if (time < start)
-                        return true;
-                }
-                if (endDate > 0) {
-                    long end = endDate + (endTime * 60 * 1000);
-                    if (time > end)
-                        return true;
-                }
-                if (!repeat.isEmpty()) {
-                    int nowInMinutes = c.get(Calendar.HOUR_OF_DAY) * 60 + c.get(Calendar.MINUTE);
-                    if(startTime == 0 && endTime == 0) endTime = 1440; // hole day if not set
-                    int day = c.get(Calendar.DAY_OF_WEEK)-1;
-                    int index = repeat.indexOf(Integer.toString(day));
-                    if (startTime > endTime && index == -1) { // check also previous day
-                        int prevDay = day - 1;
-                        if (prevDay == -1) prevDay = 6;
-                        index = repeat.indexOf(Integer.toString(prevDay));
-                    }
-                    if (index == -1)
-                        return true;
-                    if (startTime < endTime) {
-                        if (nowInMinutes < startTime || nowInMinutes > endTime)
-                            return true;
-                    } else {
-                        if (nowInMinutes < startTime && nowInMinutes > endTime)
-                            return true;
-                    }
-                }
-            }
-            return false;
+            //Log.d(TAG, "Time:" + getDateAndTimeString(System.currentTimeMillis()) + " Location age:" + age);
+            return new Fix(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                    location.getAltitude(), location.getBearing(), location.getSpeed(), location.getTime(),
+                    System.currentTimeMillis() - location.getTime(), deepSleep, powerSave);
         }
     }
 
-} 
+}
\ No newline at end of file
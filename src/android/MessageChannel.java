@@ -0,0 +1,519 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.os.Build;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/*
+ Optional persistent WebSocket (RFC 6455) to the message server of a team (config "channelUrl",
+ e.g. "wss://{host}/channel"). It is opened when a query or a tracking session of the team
+ starts and closed when no message has been sent for the idle time (config "channelIdle" sec).
+ The X-channel, X-team, X-pass, X-s and X-version headers are sent once in the handshake, every
+ message is one text frame of the same JSON as the POST body. The server acknowledges every
+ text frame with a text frame {"ack":n}, n = the number of messages received on the connection.
+ A message counts as delivered only when acknowledged, without the ack in ACK_TIMEOUT_MS the
+ channel is closed for RETRY_MS and the message is posted (possibly a duplicate, never a loss).
+ Other text frames from the server go to the Listener, which decides whether to trust them.
+
+ A ping is sent every PING_MS and nothing read for READ_TIMEOUT_MS (no pong, no ack) closes a
+ dead channel, so it is not kept as open when the network has changed.
+
+ A send which finds the channel closed does the handshake without holding the channel, the sends
+ of the other threads wait for it. When the handshake fails the channel is not tried again for
+ RETRY_MS and the messages are posted as before.
+ */
+class MessageChannel
+{
+    private static final String TAG = "MessageChannel";
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final long RETRY_MS = 30 * 1000L;
+    private static final long ACK_TIMEOUT_MS = 5000;
+    private static final long PING_MS = 20 * 1000L;
+    private static final int READ_TIMEOUT_MS = 45000; // two pings unanswered
+    private static final String ACK_PREFIX = "{\"ack\":";
+    private static final int MAX_FRAME = 1024 * 1024;
+    private static final int OP_CONTINUATION = 0;
+    private static final int OP_TEXT = 1;
+    private static final int OP_CLOSE = 8;
+    private static final int OP_PING = 9;
+    private static final int OP_PONG = 10;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final SecureRandom random = new SecureRandom();
+    private static final ExecutorService executor = Executors.newCachedThreadPool(); // connect, read, idle
+    private static final Map<String, MessageChannel> channels = new HashMap<String, MessageChannel>();
+
+    private final String key;
+    private final URI uri;
+    private Map<String, String> headers;
+    private long idleMs;
+    private Listener listener;
+    private Socket socket = null;
+    private OutputStream out = null;
+    private boolean connecting = false; // handshake in progress, outside the monitor
+    private long lastUsed = 0;
+    private long frames = 0; // text frames written to the connection
+    private long acked = 0; // of them acknowledged by the server
+    private long failedAt = -RETRY_MS;
+    private long handshakes = 0;
+    private long sent = 0;
+    private long received = 0;
+
+    // Messages of the server, called in the reader thread of the channel
+    interface Listener {
+        void onMessage(String text);
+    }
+
+    private MessageChannel(String key, URI uri)
+    {
+        this.key = key;
+        this.uri = uri;
+    }
+
+    // Channel of the url and team (X-team header), connected in the background
+    static MessageChannel open(String url, Map<String, String> headers, long idleMs, Listener listener)
+    {
+        String key = url + "#" + headers.get("X-team");
+        final MessageChannel channel;
+        synchronized (channels) {
+            MessageChannel existing = channels.get(key);
+            if (existing == null) {
+                try {
+                    existing = new MessageChannel(key, new URI(url));
+                } catch (Exception e) {
+                    Log.e(TAG, "Invalid channel url " + url, e);
+                    return null;
+                }
+                channels.put(key, existing);
+            }
+            channel = existing;
+        }
+        synchronized (channel) {
+            channel.headers = headers;
+            channel.idleMs = idleMs;
+            channel.listener = listener;
+            channel.lastUsed = System.currentTimeMillis();
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                channel.connect();
+            }
+        });
+        return channel;
+    }
+
+    // True when the server acknowledged the message, false when it has to be posted. The wait
+    // for the ack releases the channel, so the sends of several threads are pipelined.
+    boolean send(String text)
+    {
+        if (!connect()) return false;
+        synchronized (this) {
+            return sendFrame(text);
+        }
+    }
+
+    private boolean sendFrame(String text)
+    {
+        Socket connection = socket;
+        if (connection == null) return false; // closed after the connect
+        long frame;
+        try {
+            writeFrame(OP_TEXT, text.getBytes(UTF8));
+            frame = ++frames;
+            lastUsed = System.currentTimeMillis();
+        } catch (IOException e) {
+            Log.e(TAG, "Channel send failed: " + e.getMessage());
+            Metrics.count("channel.failure");
+            close(connection);
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + ACK_TIMEOUT_MS;
+        while (acked < frame) {
+            if (socket != connection) return false; // closed before the ack
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                Log.e(TAG, "Channel ack timeout " + uri.getHost());
+                Metrics.count("channel.ackTimeout");
+                failedAt = System.currentTimeMillis(); // not tried again for RETRY_MS
+                close(connection);
+                return false;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        sent++;
+        return true;
+    }
+
+    // Per channel (url#team): connected, handshakes, sent, received
+    static JSONObject getStats() throws JSONException
+    {
+        JSONObject stats = new JSONObject();
+        synchronized (channels) {
+            for (MessageChannel channel : channels.values()) {
+                synchronized (channel) {
+                    JSONObject json = new JSONObject();
+                    json.put("connected", channel.socket != null);
+                    json.put("handshakes", channel.handshakes);
+                    json.put("sent", channel.sent);
+                    json.put("received", channel.received);
+                    stats.put(channel.key, json);
+                }
+            }
+        }
+        return stats;
+    }
+
+    // The handshake runs without the monitor, so that the acks, pings and stats of the channel
+    // are not blocked by a slow server. The other sends wait for its result.
+    private boolean connect()
+    {
+        Map<String, String> handshakeHeaders;
+        long now;
+        synchronized (this) {
+            while (connecting) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (socket != null) return true;
+            now = System.currentTimeMillis();
+            if (now - failedAt < RETRY_MS) return false;
+            connecting = true;
+            handshakeHeaders = headers;
+        }
+        Socket connection = null;
+        boolean open = false;
+        try {
+            boolean secure = "wss".equalsIgnoreCase(uri.getScheme());
+            String host = uri.getHost();
+            int port = uri.getPort() > 0 ? uri.getPort() : secure ? 443 : 80;
+            connection = new Socket();
+            connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            if (secure) connection = startTls(connection, host, port);
+            connection.setSoTimeout(CONNECT_TIMEOUT_MS);
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream os = connection.getOutputStream();
+            handshake(in, os, handshakeHeaders, host, uri.getPort() > 0 ? host + ":" + port : host);
+            connection.setSoTimeout(READ_TIMEOUT_MS);
+            synchronized (this) {
+                socket = connection;
+                out = os;
+                frames = 0;
+                acked = 0;
+                handshakes++;
+                startReader(connection, in);
+                scheduleIdleCheck(idleMs);
+                schedulePing(connection);
+            }
+            open = true;
+            Metrics.count("channel.handshake");
+            Log.d(TAG, "Channel open " + uri.getHost());
+        } catch (Exception e) {
+            Log.e(TAG, "Channel handshake failed: " + e.getMessage());
+            Metrics.count("channel.failure");
+        } finally {
+            synchronized (this) {
+                if (!open) failedAt = now;
+                connecting = false;
+                notifyAll();
+            }
+            if (!open) closeQuietly(connection);
+        }
+        return open;
+    }
+
+    private static Socket startTls(Socket plain, String host, int port) throws IOException
+    {
+        SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(plain, host, port, true);
+        if (Build.VERSION.SDK_INT >= 24) {
+            SSLParameters parameters = ssl.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            ssl.setSSLParameters(parameters);
+        }
+        ssl.startHandshake();
+        if (Build.VERSION.SDK_INT < 24 && !HttpsURLConnection.getDefaultHostnameVerifier().verify(host, ssl.getSession()))
+            throw new SSLException("Channel host name mismatch " + host);
+        return ssl;
+    }
+
+    private void handshake(InputStream in, OutputStream os, Map<String, String> headers, String host, String hostHeader) throws IOException
+    {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        String secKey = Base64.encodeToString(nonce, Base64.NO_WRAP);
+        StringBuilder request = new StringBuilder(512);
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+        request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(hostHeader).append("\r\n");
+        request.append("Upgrade: websocket\r\nConnection: Upgrade\r\n");
+        request.append("Sec-WebSocket-Key: ").append(secKey).append("\r\n");
+        request.append("Sec-WebSocket-Version: 13\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet())
+            request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        request.append("\r\n");
+        os.write(request.toString().getBytes(UTF8));
+        os.flush();
+
+        String status = readLine(in);
+        if (!status.startsWith("HTTP/1.1 101")) throw new IOException("Channel refused: " + status);
+        String accept = null;
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept"))
+                accept = line.substring(colon + 1).trim();
+        }
+        if (!getAccept(secKey).equals(accept)) throw new IOException("Channel handshake mismatch " + host);
+    }
+
+    private static String getAccept(String secKey)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((secKey + GUID).getBytes(UTF8));
+            return Base64.encodeToString(digest, Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-1 is always supported
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') line.append((char) c);
+            if (line.length() > 8192) throw new IOException("Channel header too long");
+        }
+        if (c == -1) throw new IOException("Channel closed in handshake");
+        return line.toString();
+    }
+
+    // Client frames are masked
+    private void writeFrame(int opcode, byte[] payload) throws IOException
+    {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 14);
+        frame.write(0x80 | opcode);
+        if (payload.length < 126) {
+            frame.write(0x80 | payload.length);
+        } else if (payload.length < 65536) {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length);
+        } else {
+            frame.write(0x80 | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) frame.write((int) ((long) payload.length >> shift));
+        }
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        frame.write(mask, 0, 4);
+        for (int i = 0; i < payload.length; i++) frame.write(payload[i] ^ mask[i & 3]);
+        frame.writeTo(out);
+        out.flush();
+    }
+
+    private void startReader(final Socket connection, final InputStream in)
+    {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    read(connection, in);
+                } catch (IOException e) {
+                    Log.d(TAG, "Channel closed: " + e.getMessage());
+                } finally {
+                    close(connection);
+                }
+            }
+        });
+    }
+
+    private void read(Socket connection, InputStream in) throws IOException
+    {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        while (true) {
+            int b0 = readByte(in);
+            int b1 = readByte(in);
+            int opcode = b0 & 0x0f;
+            long length = b1 & 0x7f;
+            if (length == 126) length = (readByte(in) << 8) | readByte(in);
+            else if (length == 127) for (int i = 0; i < 8; i++) length = (length << 8) | readByte(in);
+            if (length > MAX_FRAME || message.size() + length > MAX_FRAME) throw new IOException("Channel frame too long");
+            byte[] mask = null;
+            if ((b1 & 0x80) != 0) {
+                mask = new byte[4];
+                readFully(in, mask);
+            }
+            byte[] payload = new byte[(int) length];
+            readFully(in, payload);
+            if (mask != null) for (int i = 0; i < payload.length; i++) payload[i] ^= mask[i & 3];
+            if (opcode == OP_CLOSE) return;
+            if (opcode == OP_PING) {
+                synchronized (this) {
+                    if (socket != connection) return;
+                    writeFrame(OP_PONG, payload);
+                }
+                continue;
+            }
+            if (opcode != OP_TEXT && opcode != OP_CONTINUATION) continue; // pong, binary
+            message.write(payload, 0, payload.length);
+            if ((b0 & 0x80) == 0) continue; // more fragments
+            String text = new String(message.toByteArray(), UTF8);
+            message.reset();
+            if (text.startsWith(ACK_PREFIX)) {
+                onAck(connection, text);
+                continue;
+            }
+            Listener current;
+            synchronized (this) {
+                received++;
+                current = listener;
+            }
+            Metrics.count("channel.received");
+            if (current != null) current.onMessage(text);
+        }
+    }
+
+    private synchronized void onAck(Socket connection, String text)
+    {
+        if (socket != connection) return;
+        try {
+            acked = Math.max(acked, new JSONObject(text).getLong("ack"));
+            notifyAll();
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid channel ack " + text);
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException
+    {
+        int b = in.read();
+        if (b == -1) throw new IOException("end of stream");
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException
+    {
+        int n = 0;
+        while (n < buffer.length) {
+            int read = in.read(buffer, n, buffer.length - n);
+            if (read == -1) throw new IOException("end of stream");
+            n += read;
+        }
+    }
+
+    // Keepalive of the connection, the pongs keep the reads within READ_TIMEOUT_MS
+    private void schedulePing(final Socket connection)
+    {
+        DeferredScheduler.schedule("ping:" + key, PING_MS, executor, new Runnable() {
+            public void run() {
+                synchronized (MessageChannel.this) {
+                    if (socket != connection) return;
+                    try {
+                        writeFrame(OP_PING, new byte[0]);
+                    } catch (IOException e) {
+                        Log.d(TAG, "Channel ping failed: " + e.getMessage());
+                        close(connection);
+                        return;
+                    }
+                    schedulePing(connection);
+                }
+            }
+        });
+    }
+
+    // Closes the channel when it has not been used for the idle time, checks again otherwise
+    private void scheduleIdleCheck(long delayMs)
+    {
+        DeferredScheduler.schedule("channel:" + key, delayMs, executor, new Runnable() {
+            public void run() {
+                synchronized (MessageChannel.this) {
+                    if (socket == null) return;
+                    long idle = System.currentTimeMillis() - lastUsed;
+                    if (idle < idleMs) {
+                        scheduleIdleCheck(idleMs - idle);
+                        return;
+                    }
+                    Log.d(TAG, "Channel idle " + uri.getHost());
+                    try {
+                        writeFrame(OP_CLOSE, new byte[]{0x03, (byte) 0xe8}); // 1000 normal closure
+                    } catch (IOException e) {
+                        Log.d(TAG, "Channel close frame failed: " + e.getMessage());
+                    }
+                    close(socket);
+                }
+            }
+        });
+    }
+
+    private synchronized void close(Socket connection)
+    {
+        if (connection == null || socket != connection) return;
+        socket = null;
+        out = null;
+        closeQuietly(connection);
+        notifyAll(); // the sends waiting for an ack post their messages
+    }
+
+    private static void closeQuietly(Socket connection)
+    {
+        if (connection == null) return;
+        try {
+            connection.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Channel close failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/*
+ JSON writer for the outgoing messages. One writer per thread, its text and byte buffers and
+ the date formatter are reused for every message, and the message is encoded from the text
+ buffer straight to the output stream.
+
+ Wire 1: the POSITION content is the location JSON as an escaped string (the original format).
+ Wire 2: the content is a nested location object.
+ TRACK content is always an array of nested location objects.
+ */
+final class MessageWriter
+{
+    static final int WIRE_STRING = 1;
+    static final int WIRE_NESTED = 2;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageWriter> writers = new ThreadLocal<MessageWriter>() {
+        @Override
+        protected MessageWriter initialValue() {
+            return new MessageWriter();
+        }
+    };
+
+    private final StringBuilder text = new StringBuilder(512);
+    private final StringBuilder content = new StringBuilder(256);
+    private final byte[] bytes = new byte[1024];
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final Date date = new Date();
+
+    static MessageWriter get()
+    {
+        return writers.get();
+    }
+
+    private MessageWriter() {
+    }
+
+    String formatDate(long utcTime)
+    {
+        date.setTime(utcTime);
+        return dateFormat.format(date);
+    }
+
+    // Message fields and optional content (String, Fix or list of Fix) into the text buffer
+    MessageWriter message(Map<String, Object> fields, Object content, int wire)
+    {
+        text.setLength(0);
+        appendMessage(text, fields, content, wire);
+        return this;
+    }
+
+    // JSON array of messages without content, e.g. batched token registrations
+    MessageWriter messages(List<Map<String, Object>> messages)
+    {
+        text.setLength(0);
+        text.append('[');
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) text.append(',');
+            appendMessage(text, messages.get(i), null, WIRE_STRING);
+        }
+        text.append(']');
+        return this;
+    }
+
+    @Override
+    public String toString()
+    {
+        return text.toString();
+    }
+
+    // UTF-8 encoding of the text buffer in chunks of the reusable byte buffer
+    void writeTo(OutputStream os) throws IOException
+    {
+        int n = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (n > bytes.length - 4) {
+                os.write(bytes, 0, n);
+                n = 0;
+            }
+            int c = text.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, text.charAt(++i));
+            }
+            if (c < 0x80) {
+                bytes[n++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[n++] = (byte) (0xc0 | (c >> 6));
+                bytes[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (c < 0x10000) {
+                bytes[n++] = (byte) (0xe0 | (c >> 12));
+                bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[n++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                bytes[n++] = (byte) (0xf0 | (c >> 18));
+                bytes[n++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+                bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        if (n > 0) os.write(bytes, 0, n);
+    }
+
+    private void appendMessage(StringBuilder sb, Map<String, Object> fields, Object content, int wire)
+    {
+        sb.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (field.getValue() == null) continue;
+            first = appendName(sb, field.getKey(), first);
+            appendValue(sb, field.getValue());
+        }
+        if (content instanceof Fix) {
+            first = appendName(sb, "content", first);
+            if (wire == WIRE_NESTED) {
+                appendFix(sb, (Fix) content);
+            } else {
+                this.content.setLength(0);
+                appendFix(this.content, (Fix) content);
+                appendString(sb, this.content);
+            }
+        } else if (content instanceof List) { // track, always nested
+            first = appendName(sb, "content", first);
+            sb.append('[');
+            List<?> fixes = (List<?>) content;
+            for (int i = 0; i < fixes.size(); i++) {
+                if (i > 0) sb.append(',');
+                appendFix(sb, (Fix) fixes.get(i));
+            }
+            sb.append(']');
+        } else if (content != null) {
+            appendName(sb, "content", first);
+            appendValue(sb, content);
+        }
+        sb.append('}');
+    }
+
+    // Same fields and order as the original location JSON
+    private void appendFix(StringBuilder sb, Fix fix)
+    {
+        sb.append("{\"latitude\":");
+        appendDouble(sb, fix.latitude);
+        sb.append(",\"longitude\":");
+        appendDouble(sb, fix.longitude);
+        sb.append(",\"accuracy\":").append(fix.accuracy);
+        sb.append(",\"altitude\":").append(fix.altitude);
+        sb.append(",\"altitudeAccuracy\":\"-\""); // not supported in Android
+        sb.append(",\"heading\":").append(fix.heading);
+        sb.append(",\"speed\":").append(fix.speed);
+        sb.append(",\"timestamp\":\"").append(formatDate(fix.time)).append('"');
+        sb.append(",\"mTime\":").append(fix.time);
+        sb.append(",\"age\":").append(fix.age);
+        if (fix.deepSleep) sb.append(",\"deepSleep\":1");
+        if (fix.powerSave) sb.append(",\"powerSave\":1");
+        sb.append('}');
+    }
+
+    private static boolean appendName(StringBuilder sb, String name, boolean first)
+    {
+        if (!first) sb.append(',');
+        appendString(sb, name);
+        sb.append(':');
+        return false;
+    }
+
+    private static void appendValue(StringBuilder sb, Object value)
+    {
+        if (value instanceof String)
+            appendString(sb, (String) value);
+        else if (value instanceof Double || value instanceof Float)
+            appendDouble(sb, ((Number) value).doubleValue());
+        else // Integer, Long, Boolean
+            sb.append(value);
+    }
+
+    private static void appendDouble(StringBuilder sb, double value)
+    {
+        if (value == (long) value)
+            sb.append((long) value); // as org.json, 60.0 => 60
+        else
+            sb.append(value);
+    }
+
+    private static void appendString(StringBuilder sb, CharSequence value)
+    {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\b': sb.append("\\b"); break;
+                case '\f': sb.append("\\f"); break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        sb.append("\\u").append(HEX[c >> 12 & 0xf]).append(HEX[c >> 8 & 0xf])
+                                .append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
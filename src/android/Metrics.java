@@ -0,0 +1,276 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/*
+ Process wide latency histograms and counters of the location queries. The values are kept in
+ hourly windows, the last 24 windows are persisted in a small JSON file and getMetrics() sums
+ them. Recording is a map lookup and a few increments under one lock, the file is written at
+ most once per SAVE_DELAY_MS.
+ */
+class Metrics
+{
+    private static final String TAG = "Metrics";
+    static final String FILE_NAME = "location_metrics.json";
+    static final long WINDOW_MS = 60 * 60 * 1000L;
+    private static final int MAX_WINDOWS = 24;
+    private static final long SAVE_DELAY_MS = 30 * 1000L;
+    // Upper bounds of the histogram buckets in ms, the last bucket is everything above
+    static final long[] BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 20000, 30000, 60000};
+    private static final Executor saver = Executors.newSingleThreadExecutor();
+    private static final List<Window> windows = new ArrayList<Window>();
+    private static File file = null;
+
+    private static class Window
+    {
+        long start;
+        final Map<String, long[]> timers = new HashMap<String, long[]>(); // buckets + count, sum, max
+        final Map<String, long[]> counters = new HashMap<String, long[]>();
+    }
+
+    private Metrics() {
+    }
+
+    // Loads the persisted windows once, before that the metrics are kept in memory only
+    static synchronized void attach(File dir)
+    {
+        if (file != null) return;
+        file = new File(dir, FILE_NAME);
+        load();
+    }
+
+    static void record(String timer, long ms)
+    {
+        synchronized (Metrics.class) {
+            long[] values = getTimer(getWindow(System.currentTimeMillis()), timer);
+            int bucket = 0;
+            while (bucket < BOUNDS.length && ms > BOUNDS[bucket]) bucket++;
+            values[bucket]++;
+            values[BOUNDS.length + 1]++;
+            values[BOUNDS.length + 2] += ms;
+            values[BOUNDS.length + 3] = Math.max(values[BOUNDS.length + 3], ms);
+        }
+        scheduleSave();
+    }
+
+    static void count(String counter)
+    {
+        synchronized (Metrics.class) {
+            Window window = getWindow(System.currentTimeMillis());
+            long[] value = window.counters.get(counter);
+            if (value == null) window.counters.put(counter, value = new long[1]);
+            value[0]++;
+        }
+        scheduleSave();
+    }
+
+    static synchronized void reset()
+    {
+        windows.clear();
+        if (file != null && file.exists() && !file.delete())
+            Log.e(TAG, "Metrics delete failed");
+    }
+
+    // Sum of the retained windows: per timer count, sumMs, maxMs, averageMs and bucket counts
+    static synchronized JSONObject getMetrics() throws JSONException
+    {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Window total = new Window();
+        total.start = windows.isEmpty() ? now : windows.get(0).start;
+        for (Window window : windows) {
+            for (Map.Entry<String, long[]> timer : window.timers.entrySet()) {
+                long[] sum = getTimer(total, timer.getKey());
+                long[] values = timer.getValue();
+                for (int i = 0; i <= BOUNDS.length + 2; i++) sum[i] += values[i];
+                sum[BOUNDS.length + 3] = Math.max(sum[BOUNDS.length + 3], values[BOUNDS.length + 3]);
+            }
+            for (Map.Entry<String, long[]> counter : window.counters.entrySet()) {
+                long[] sum = total.counters.get(counter.getKey());
+                if (sum == null) total.counters.put(counter.getKey(), sum = new long[1]);
+                sum[0] += counter.getValue()[0];
+            }
+        }
+        JSONObject result = new JSONObject();
+        result.put("since", total.start);
+        result.put("bounds", new JSONArray(toList(BOUNDS, BOUNDS.length)));
+        JSONObject timers = new JSONObject();
+        for (Map.Entry<String, long[]> timer : total.timers.entrySet()) {
+            long[] values = timer.getValue();
+            long count = values[BOUNDS.length + 1];
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("sumMs", values[BOUNDS.length + 2]);
+            json.put("maxMs", values[BOUNDS.length + 3]);
+            json.put("averageMs", count == 0 ? 0 : values[BOUNDS.length + 2] / count);
+            json.put("buckets", new JSONArray(toList(values, BOUNDS.length + 1)));
+            timers.put(timer.getKey(), json);
+        }
+        result.put("timers", timers);
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<String, long[]> counter : total.counters.entrySet())
+            counters.put(counter.getKey(), counter.getValue()[0]);
+        result.put("counters", counters);
+        return result;
+    }
+
+    private static long[] getTimer(Window window, String timer)
+    {
+        long[] values = window.timers.get(timer);
+        if (values == null) window.timers.put(timer, values = new long[BOUNDS.length + 4]);
+        return values;
+    }
+
+    // Current window, a new one starts every WINDOW_MS
+    private static Window getWindow(long now)
+    {
+        if (!windows.isEmpty()) {
+            Window last = windows.get(windows.size() - 1);
+            if (now - last.start < WINDOW_MS) return last;
+        }
+        Window window = new Window();
+        window.start = now - now % WINDOW_MS;
+        windows.add(window);
+        expire(now);
+        return window;
+    }
+
+    private static void expire(long now)
+    {
+        while (!windows.isEmpty() && (windows.size() > MAX_WINDOWS || now - windows.get(0).start >= MAX_WINDOWS * WINDOW_MS))
+            windows.remove(0);
+    }
+
+    private static List<Long> toList(long[] values, int length)
+    {
+        List<Long> list = new ArrayList<Long>(length);
+        for (int i = 0; i < length; i++) list.add(values[i]);
+        return list;
+    }
+
+    private static void scheduleSave()
+    {
+        if (file == null) return;
+        DeferredScheduler.schedule(FILE_NAME, SAVE_DELAY_MS, saver, new Runnable() {
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    private static void load()
+    {
+        try {
+            String text = JsonFile.read(file);
+            if (text == null) return;
+            JSONArray array = new JSONArray(text);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                Window window = new Window();
+                window.start = json.getLong("start");
+                readValues(json.optJSONObject("timers"), window.timers, BOUNDS.length + 4);
+                readValues(json.optJSONObject("counters"), window.counters, 1);
+                merge(window);
+            }
+            expire(System.currentTimeMillis());
+        } catch (JSONException e) {
+            Log.e(TAG, "Metrics load failed", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Metrics load failed", e);
+        }
+    }
+
+    // Adds a persisted window to the in-memory ones, keeping the list ordered by start time
+    private static void merge(Window loaded)
+    {
+        int index = 0;
+        while (index < windows.size() && windows.get(index).start < loaded.start) index++;
+        if (index == windows.size() || windows.get(index).start != loaded.start) {
+            windows.add(index, loaded);
+            return;
+        }
+        Window window = windows.get(index);
+        for (Map.Entry<String, long[]> timer : loaded.timers.entrySet()) {
+            long[] values = getTimer(window, timer.getKey());
+            long[] add = timer.getValue();
+            for (int i = 0; i <= BOUNDS.length + 2; i++) values[i] += add[i];
+            values[BOUNDS.length + 3] = Math.max(values[BOUNDS.length + 3], add[BOUNDS.length + 3]);
+        }
+        for (Map.Entry<String, long[]> counter : loaded.counters.entrySet()) {
+            long[] value = window.counters.get(counter.getKey());
+            if (value == null) window.counters.put(counter.getKey(), value = new long[1]);
+            value[0] += counter.getValue()[0];
+        }
+    }
+
+    private static void readValues(JSONObject json, Map<String, long[]> map, int length) throws JSONException
+    {
+        JSONArray names = json == null ? null : json.names();
+        for (int i = 0; names != null && i < names.length(); i++) {
+            JSONArray array = json.getJSONArray(names.getString(i));
+            long[] values = new long[length];
+            for (int j = 0; j < length && j < array.length(); j++) values[j] = array.getLong(j);
+            map.put(names.getString(i), values);
+        }
+    }
+
+    private static synchronized void save()
+    {
+        try {
+            JSONArray array = new JSONArray();
+            for (Window window : windows) {
+                JSONObject json = new JSONObject();
+                json.put("start", window.start);
+                json.put("timers", writeValues(window.timers));
+                json.put("counters", writeValues(window.counters));
+                array.put(json);
+            }
+            JsonFile.write(file, array.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Metrics save failed", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Metrics save failed", e);
+        }
+    }
+
+    private static JSONObject writeValues(Map<String, long[]> map) throws JSONException
+    {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, long[]> entry : map.entrySet())
+            json.put(entry.getKey(), new JSONArray(toList(entry.getValue(), entry.getValue().length)));
+        return json;
+    }
+}
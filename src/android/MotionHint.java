@@ -0,0 +1,83 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.util.Log;
+
+/*
+ Stationary hint from the significant motion sensor. The one-shot trigger is armed again after
+ every motion, so the device has not moved since a time when the sensor was armed before it and
+ has not triggered after it. Without the sensor the device is never considered stationary.
+ */
+class MotionHint
+{
+    private static final String TAG = "MotionHint";
+    private static MotionHint instance = null;
+
+    private final SensorManager sensorManager;
+    private final Sensor sensor;
+    private long armedSince = 0; // epoch ms, 0 = not armed
+    private long lastMotion = 0;
+
+    private final TriggerEventListener listener = new TriggerEventListener() {
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            synchronized (MotionHint.this) {
+                lastMotion = System.currentTimeMillis();
+                if (!sensorManager.requestTriggerSensor(listener, sensor)) armedSince = 0;
+            }
+        }
+    };
+
+    static synchronized MotionHint getInstance(Context context)
+    {
+        if (instance == null) instance = new MotionHint(context.getApplicationContext());
+        return instance;
+    }
+
+    private MotionHint(Context context)
+    {
+        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        sensor = sensorManager == null ? null : sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+    }
+
+    synchronized void start()
+    {
+        if (sensor == null || armedSince > 0) return;
+        try {
+            if (sensorManager.requestTriggerSensor(listener, sensor))
+                armedSince = System.currentTimeMillis();
+        } catch (Exception e) {
+            Log.e(TAG, "requestTriggerSensor failed", e);
+        }
+    }
+
+    // True when the device has not moved since the time (epoch ms)
+    synchronized boolean isStationarySince(long time)
+    {
+        return armedSince > 0 && armedSince <= time && lastMotion < time;
+    }
+}
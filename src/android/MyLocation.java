@@ -4,76 +4,64 @@
 */
 package com.tonikorin.cordova.plugin.LocationProvider;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import android.content.Context;
 import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
-import android.os.Bundle;
-import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.List;
+
 import static android.content.Context.POWER_SERVICE;
 
-class MyLocation extends Thread {
-    private Timer timer1;
+/*
+ One location request. The requests run in the shared LocationEngine thread, which calls
+ begin(), escalate(), offer(), progress(), onTimeout() and finish(). The ProviderStrategy plans which
+ providers are used in which stage, the path of the answer (strategy.stage.provider) is
+ reported to the LocationResult. The GPS and network fixes are fused (FusionFilter), the fused
+ estimate answers as soon as it meets the accuracy and it is the fallback at the timeout.
+ */
+class MyLocation {
     private Context context;
-    private LocationManager lm;
     private LocationResult locationResult;
     private boolean gps_enabled = false;
     private boolean network_enabled = false;
     private int desiredAccuracy = 65; // 65 meter
     private int timeout = 60*1000; // 65 sec
+    private int window = 60*1000; // max age of a fix, the timeout before learning
+    private long fallback = 60*1000; // ms, no fix at all by then => last known location
+    private boolean fullWindow = true;
+    private String modelKey = null;
+    private final ProviderStrategy strategy;
+    private List<ProviderStrategy.Stage> stages = null;
+    private int stage = 0;
+    private long startTime = 0;
+    private Location bestProgress = null;
+    private final FusionFilter fusion = new FusionFilter();
+    private boolean firstFix = false;
     private static final String TAG = "MyLocation";
 
-    private LocationListener locationListenerNetwork = new LocationListener() {
-        public void onLocationChanged(Location location) {
-            validateLocation(location);
-        }
-
-        public void onProviderDisabled(String provider) {
-        }
-
-        public void onProviderEnabled(String provider) {
-        }
-
-        public void onStatusChanged(String provider, int status, Bundle extras) {
-        }
-    };
-    private LocationListener locationListenerGps = new LocationListener() {
-        public void onLocationChanged(Location location) {
-            validateLocation(location);
-        }
-
-        public void onProviderDisabled(String provider) {
-        }
-
-        public void onProviderEnabled(String provider) {
-        }
-
-        public void onStatusChanged(String provider, int status, Bundle extras) {
-        }
-    };
-
     public MyLocation(Context context, LocationResult result, int accuracy, int timeout) {
+        this(context, result, accuracy, timeout, ProviderStrategy.ACCURATE);
+    }
+
+    public MyLocation(Context context, LocationResult result, int accuracy, int timeout, String strategy) {
         this.context = context;
+        this.strategy = ProviderStrategy.get(strategy);
         // LocationResult callback class to pass location value from MyLocation to user code.
         this.locationResult = result;
         this.desiredAccuracy = accuracy;
         this.timeout = timeout * 1000;
     }
 
-    public void run() {
-        this.getLocation();
+    public void start() {
+        LocationEngine.getInstance(context).add(this);
     }
 
-    private void getLocation() {
-        if (lm == null)
-            lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-
+    // Returns false when the request was answered already (no provider enabled)
+    boolean begin(LocationManager lm) {
+        startTime = SystemClock.elapsedRealtime();
         //exceptions will be thrown if provider is not permitted.
         try {
             gps_enabled = lm.isProviderEnabled(LocationManager.GPS_PROVIDER);
@@ -86,96 +74,215 @@ class MyLocation extends Thread {
 
         //don't start listeners if no provider is enabled
         if (!gps_enabled && !network_enabled) {
+            Metrics.count("provider.disabled");
             locationResult.gotLocation(null);
-            return;
+            return false;
         }
-        try {
-            handleDeepSleepAndPowerSaveModes();
-            if (Looper.myLooper() == null) Looper.prepare();
-            if (gps_enabled)
-                lm.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, locationListenerGps, Looper.myLooper());
-            if (network_enabled)
-                lm.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, locationListenerNetwork, Looper.myLooper());
-            timer1 = new Timer();
-            timer1.schedule(new GetLastLocation(Looper.myLooper()), timeout);
-            Looper.loop();
-        } catch (Exception ex) { // very likely user permission missing...
-            locationResult.gotLocation(null);
-            if (timer1 != null) timer1.cancel();
-            Looper.myLooper().quitSafely();
-            return;
+        handleDeepSleepAndPowerSaveModes();
+        window = timeout;
+        boolean deepSleep = isInDeepSleep(context);
+        boolean powerSave = isInPowerSave(context);
+        if (deepSleep || powerSave) { // a fresh enough fix of another app answers at once
+            Location passive = PassiveCollector.get(desiredAccuracy);
+            if (passive != null) {
+                deliver(passive, "passive");
+                return false;
+            }
         }
+        modelKey = AcquisitionModel.getKey(strategy.getName(), gps_enabled, network_enabled, deepSleep,
+                powerSave, desiredAccuracy);
+        long[] timeouts = AcquisitionModel.getTimeouts(modelKey, timeout);
+        timeout = (int) timeouts[0];
+        fallback = timeouts[1];
+        fullWindow = timeout == window && fallback == window;
+        stages = strategy.plan(desiredAccuracy, timeout, deepSleep || powerSave, gps_enabled, network_enabled);
+        // no early fallback before the last stage had a chance
+        long lastStage = stages.get(stages.size() - 1).start;
+        if (lastStage > 0) fallback = Math.max(fallback, Math.min(lastStage + AcquisitionModel.MIN_TIMEOUT_MS, timeout));
+        return true;
+    }
+
+    int getStageCount() {
+        return stages.size();
+    }
+
+    long getStageStart(int index) {
+        return stages.get(index).start;
+    }
+
+    void escalate(int index) {
+        if (index <= stage) return;
+        Log.d(TAG, strategy.getName() + " escalated to " + stages.get(index).name);
+        stage = index;
+    }
+
+    boolean usesGps() {
+        return getInterval(true) >= 0;
     }
 
-    private void validateLocation(Location location) {
-        if (location.getAccuracy() > desiredAccuracy || (System.currentTimeMillis()-location.getTime()) > this.timeout)
-            return; // continue, accuracy or age is not valid
-        else { // accuracy ok, stop
-            timer1.cancel();
-            locationResult.gotLocation(location);
-            lm.removeUpdates(locationListenerGps);
-            lm.removeUpdates(locationListenerNetwork);
-            Looper.myLooper().quitSafely();
+    boolean usesNetwork() {
+        return getInterval(false) >= 0;
+    }
+
+    long getGpsInterval() {
+        return getInterval(true);
+    }
+
+    long getNetworkInterval() {
+        return getInterval(false);
+    }
+
+    // Smallest interval of the provider in the stages started so far, -1 = not used
+    private long getInterval(boolean gps) {
+        long interval = -1;
+        for (int i = 0; stages != null && i <= stage; i++) {
+            ProviderStrategy.Stage s = stages.get(i);
+            if (gps ? s.gps : s.network)
+                interval = interval < 0 ? s.interval : Math.min(interval, s.interval);
         }
+        return interval;
+    }
+
+    int getTimeout() {
+        return timeout;
+    }
+
+    // Learned point to give up when no fix of any accuracy has arrived, <= getTimeout()
+    long getFallbackTime() {
+        return fallback;
+    }
+
+    boolean hasFix() {
+        return firstFix;
+    }
+
+    private boolean isValid(Location location) {
+        // accuracy or age is not valid => continue
+        return !(location.getAccuracy() > desiredAccuracy || isTooOld(location));
+    }
+
+    private boolean isTooOld(Location location) {
+        return (System.currentTimeMillis()-location.getTime()) > this.window;
+    }
+
+    // The answer when the fix or the fused estimate with it meets the accuracy, null = continue
+    Location offer(Location location) {
+        if (!isTooOld(location)) fusion.add(location);
+        Location estimate = fusion.getEstimate();
+        if (isValid(location))
+            return estimate != null && estimate.getAccuracy() < location.getAccuracy() && isValid(estimate) ? estimate : location;
+        if (estimate != null && FusionFilter.PROVIDER.equals(estimate.getProvider()) && isValid(estimate))
+            return estimate;
+        return null;
+    }
+
+    // A fix which does not meet the accuracy yet, the estimate is reported when it is better
+    // than the previous one
+    void progress(Location location) {
+        recordFirstFix();
+        Location estimate = fusion.getEstimate();
+        if (estimate != null) location = estimate;
+        if (isTooOld(location))
+            return;
+        if (bestProgress != null && location.getAccuracy() >= bestProgress.getAccuracy())
+            return;
+        bestProgress = location;
+        locationResult.gotProgress(location);
+    }
+
+    void finish(Location location) {
+        if (location == null) {
+            Metrics.count("fix.none");
+            locationResult.gotLocation(null);
+        } else {
+            recordFirstFix();
+            long elapsed = SystemClock.elapsedRealtime() - startTime;
+            Metrics.record("accurateFix", elapsed);
+            AcquisitionModel.recordAccurateFix(modelKey, elapsed, fullWindow);
+            deliver(location, stages.get(stage).name);
+        }
+    }
+
+    // Time to the first fix of any accuracy
+    private void recordFirstFix() {
+        if (firstFix) return;
+        firstFix = true;
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+        Metrics.record("firstFix", elapsed);
+        AcquisitionModel.recordFirstFix(modelKey, elapsed, fullWindow);
+    }
+
+    private void deliver(Location location, String stageName) {
+        String path = strategy.getName() + "." + stageName + "." + location.getProvider();
+        Metrics.count("fix." + location.getProvider());
+        Metrics.count("path." + path);
+        locationResult.setPath(path);
+        LocationCache.put(location);
+        LocationCache.recordAcquisition(SystemClock.elapsedRealtime() - startTime);
+        locationResult.gotLocation(location);
     }
 
     private void handleDeepSleepAndPowerSaveModes(){ // Deep sleep = Doze mode
-        PowerManager powerManager = (PowerManager) context.getSystemService(POWER_SERVICE);
-        if (powerManager != null ) {
-            if (android.os.Build.VERSION.SDK_INT >= 23 && powerManager.isDeviceIdleMode()) {
-                Log.d(TAG, "In deep sleep mode -- Location service is limited or off -- getLastKnownLocation after 12 sec");
-                locationResult.setInDeepSleepTrue();
-                timeout = 12000;
-            }
-            if (powerManager.isPowerSaveMode()){
-                Log.d(TAG, "Power save mode -- Location service limited -- getLastKnownLocation after 14 sec");
-                locationResult.setPowerSaveTrue();
-                timeout = 14000;
-            }
+        if (isInDeepSleep(context)) {
+            Log.d(TAG, "In deep sleep mode -- Location service is limited or off -- getLastKnownLocation after 12 sec");
+            Metrics.count("deepSleep");
+            locationResult.setInDeepSleepTrue();
+            timeout = 12000;
+        }
+        if (isInPowerSave(context)){
+            Log.d(TAG, "Power save mode -- Location service limited -- getLastKnownLocation after 14 sec");
+            Metrics.count("powerSave");
+            locationResult.setPowerSaveTrue();
+            timeout = 14000;
         }
     }
 
+    static boolean isInDeepSleep(Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(POWER_SERVICE);
+        return powerManager != null && android.os.Build.VERSION.SDK_INT >= 23 && powerManager.isDeviceIdleMode();
+    }
+
+    static boolean isInPowerSave(Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(POWER_SERVICE);
+        return powerManager != null && powerManager.isPowerSaveMode();
+    }
+
     public static abstract class LocationResult {
         public abstract void gotLocation(Location location);
         public abstract void setInDeepSleepTrue();
         public abstract void setPowerSaveTrue();
+        // Optional, better fixes before the accurate one (progressive POSITION)
+        public void gotProgress(Location location) {}
+        // Optional, strategy.stage.provider of the location, called before gotLocation
+        public void setPath(String path) {}
     }
 
-    private class GetLastLocation extends TimerTask {
-
-        private Looper parentLooper; // MyLocation
-
-        GetLastLocation(Looper parentLooper) {
-            this.parentLooper = parentLooper;
-        }
-
-        @Override
-        public void run() {
-            lm.removeUpdates(locationListenerGps);
-            lm.removeUpdates(locationListenerNetwork);
+    // No fix at the learned fallback point, the providers are not likely to answer in time
+    void onFallback(LocationManager lm) {
+        Metrics.count("fallback.early");
+        onTimeout(lm);
+    }
 
-            Location net_loc = null, gps_loc = null;
+    // Timeout, the best estimate of the fixes received and the last known locations of the
+    // providers, their errors grow with age
+    void onTimeout(LocationManager lm) {
+        AcquisitionModel.recordMiss(modelKey, firstFix, fullWindow);
+        try {
             if (gps_enabled)
-                gps_loc = lm.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+                fusion.add(lm.getLastKnownLocation(LocationManager.GPS_PROVIDER));
             if (network_enabled)
-                net_loc = lm.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
-
-            //if there are both values use the latest one
-            if (gps_loc != null && net_loc != null) {
-                if (gps_loc.getTime() > net_loc.getTime())
-                    locationResult.gotLocation(gps_loc);
-                else
-                    locationResult.gotLocation(net_loc);
-            } else {
-                if (gps_loc != null)
-                    locationResult.gotLocation(gps_loc);
-                else if (net_loc != null)
-                    locationResult.gotLocation(net_loc);
-                else
-                    locationResult.gotLocation(null);
-            }
-            parentLooper.quitSafely();
-            timer1.cancel();
+                fusion.add(lm.getLastKnownLocation(LocationManager.NETWORK_PROVIDER));
+        } catch (Exception ex) {
+            Log.e(TAG, "getLastKnownLocation failed", ex);
+        }
+
+        Location estimate = fusion.getEstimate();
+        if (estimate == null) {
+            Metrics.count("fallback.none");
+            locationResult.gotLocation(null);
+        } else {
+            Metrics.count(FusionFilter.PROVIDER.equals(estimate.getProvider()) ? "fallback.fused" : "fallback.lastKnown");
+            deliver(estimate, "fallback");
         }
     }
 }
@@ -0,0 +1,332 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ Durable queue of messages which could not be posted. The queue is kept in a small JSON file.
+ Failed flushes back off exponentially, and each message type has its own max age after which
+ the message is useless for the receiver and dropped. A newer message of the same team drops
+ the queued ones it supersedes (e.g. an ALIVE or POSITION of an earlier query), so a replay
+ never delivers a stale state after the fresh one. The fix age is recomputed when replayed.
+ */
+class Outbox
+{
+    private static final String TAG = "Outbox";
+    static final String FILE_NAME = "location_outbox.json";
+    private static final int MAX_MESSAGES = 200;
+    private static final long BACKOFF_MIN_MS = 30 * 1000L;
+    private static final long BACKOFF_MAX_MS = 60 * 60 * 1000L;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Map<String, Outbox> outboxes = new HashMap<String, Outbox>();
+
+    private final File file;
+    private final List<Message> messages = new ArrayList<Message>();
+    private long nextId = 1;
+    private boolean flushing = false;
+
+    static class Message
+    {
+        long id;
+        String type;
+        String url;
+        Map<String, String> headers;
+        String body;
+        long created;
+        int attempts;
+        long nextAttempt;
+    }
+
+    // One outbox per file in the process
+    static synchronized Outbox open(File dir)
+    {
+        File file = new File(dir, FILE_NAME);
+        Outbox outbox = outboxes.get(file.getAbsolutePath());
+        if (outbox == null) {
+            outbox = new Outbox(file);
+            outboxes.put(file.getAbsolutePath(), outbox);
+        }
+        return outbox;
+    }
+
+    private Outbox(File file)
+    {
+        this.file = file;
+        load();
+    }
+
+    // How long a message is worth delivering
+    static long getMaxAge(String type)
+    {
+        if ("ALIVE".equals(type) || "RESERVED".equals(type)) return 2 * 60 * 1000L;
+        if ("POSITION".equals(type) || "UNCHANGED".equals(type) || "FAILURE".equals(type)) return 15 * 60 * 1000L;
+        if ("TOKEN".equals(type)) return 7 * 24 * 60 * 60 * 1000L;
+        return 60 * 60 * 1000L;
+    }
+
+    // Whether a queued message of the type is stale once the newer message of the team is sent
+    static boolean supersedes(String type, String queued)
+    {
+        boolean state = "POSITION".equals(type) || "UNCHANGED".equals(type) || "FAILURE".equals(type);
+        if (state)
+            return "ALIVE".equals(queued) || "POSITION".equals(queued) || "UNCHANGED".equals(queued) || "FAILURE".equals(queued);
+        return "ALIVE".equals(type) && "ALIVE".equals(queued);
+    }
+
+    // Drops the queued messages of the same team which the type supersedes
+    synchronized void supersede(String type, String url, Map<String, String> headers)
+    {
+        if (removeSuperseded(type, getKey(url, headers))) save();
+    }
+
+    // Messages of the same url, X-channel and X-team belong to the same team
+    static String getKey(String url, Map<String, String> headers)
+    {
+        return url + "\n" + headers.get("X-channel") + "\n" + headers.get("X-team");
+    }
+
+    private boolean removeSuperseded(String type, String key)
+    {
+        boolean removed = false;
+        Iterator<Message> it = messages.iterator();
+        while (it.hasNext()) {
+            Message message = it.next();
+            if (supersedes(type, message.type) && key.equals(getKey(message.url, message.headers))) {
+                Log.d(TAG, "Superseded " + message.type + " dropped by " + type);
+                it.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    synchronized void add(String type, String url, Map<String, String> headers, String body, long now)
+    {
+        removeSuperseded(type, getKey(url, headers));
+        Message message = new Message();
+        message.id = nextId++;
+        message.type = type;
+        message.url = url;
+        message.headers = new LinkedHashMap<String, String>(headers);
+        message.body = body;
+        message.created = now;
+        message.attempts = 0;
+        message.nextAttempt = now;
+        messages.add(message);
+        while (messages.size() > MAX_MESSAGES) messages.remove(0);
+        save();
+    }
+
+    synchronized int size()
+    {
+        return messages.size();
+    }
+
+    // Earliest time of the next delivery attempt, -1 = empty
+    synchronized long getNextAttempt()
+    {
+        long next = -1;
+        for (Message message : messages)
+            if (next == -1 || message.nextAttempt < next) next = message.nextAttempt;
+        return next;
+    }
+
+    // Sends the due messages. Messages of the same team go in one
+    // request as a JSON array when batch is on. Returns the number of messages left in the outbox.
+    int flush(HttpClient client, boolean batch, long now)
+    {
+        Map<String, List<Message>> groups = new LinkedHashMap<String, List<Message>>();
+        synchronized (this) {
+            if (flushing) return messages.size();
+            flushing = true;
+            Iterator<Message> it = messages.iterator();
+            while (it.hasNext()) {
+                Message message = it.next();
+                if (now - message.created > getMaxAge(message.type)) {
+                    Log.d(TAG, "Expired " + message.type + " dropped");
+                    it.remove();
+                    continue;
+                }
+                if (message.nextAttempt > now) continue;
+                String key = batch ? getKey(message.url, message.headers) : String.valueOf(message.id);
+                List<Message> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<Message>();
+                    groups.put(key, group);
+                }
+                group.add(message);
+            }
+        }
+        List<Message> delivered = new ArrayList<Message>();
+        List<Message> failed = new ArrayList<Message>();
+        for (List<Message> group : groups.values()) {
+            if (send(client, group, now)) delivered.addAll(group);
+            else failed.addAll(group);
+        }
+        synchronized (this) {
+            messages.removeAll(delivered);
+            for (Message message : failed) {
+                message.attempts++;
+                long backoff = BACKOFF_MIN_MS << Math.min(message.attempts - 1, 10);
+                message.nextAttempt = now + Math.min(backoff, BACKOFF_MAX_MS);
+            }
+            flushing = false;
+            save();
+            Log.d(TAG, "Flush, delivered: " + delivered.size() + " failed: " + failed.size());
+            return messages.size();
+        }
+    }
+
+    private boolean send(HttpClient client, List<Message> group, long now)
+    {
+        Message first = group.get(0);
+        Map<String, String> headers = first.headers;
+        String body = getReplayBody(first, now);
+        if (group.size() > 1) {
+            StringBuilder array = new StringBuilder("[");
+            for (int i = 0; i < group.size(); i++) {
+                if (i > 0) array.append(',');
+                array.append(getReplayBody(group.get(i), now));
+            }
+            body = array.append(']').toString();
+            headers = new LinkedHashMap<String, String>(headers);
+            headers.put("X-batch", String.valueOf(group.size()));
+        }
+        try {
+            int responseCode = client.post(first.url, headers, HttpClient.bytes(body.getBytes(UTF8)));
+            return !isRetryable(responseCode);
+        } catch (IOException e) {
+            Log.d(TAG, "Flush POST exception: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // The age (ms) of the fixes was measured when the message was queued, the time in the
+    // outbox is added to it: top level age (UNCHANGED), location content as a string (wire 1)
+    // or an object (wire 2) and TRACK arrays
+    static String getReplayBody(Message message, long now)
+    {
+        long waited = now - message.created;
+        boolean fixes = "POSITION".equals(message.type) || "UNCHANGED".equals(message.type) || "TRACK".equals(message.type);
+        if (waited <= 0 || !fixes) return message.body;
+        try {
+            JSONObject json = new JSONObject(message.body);
+            addAge(json, waited);
+            Object content = json.opt("content");
+            if (content instanceof JSONObject) {
+                addAge((JSONObject) content, waited);
+            } else if (content instanceof JSONArray) {
+                JSONArray track = (JSONArray) content;
+                for (int i = 0; i < track.length(); i++)
+                    if (track.opt(i) instanceof JSONObject) addAge(track.getJSONObject(i), waited);
+            } else if (content instanceof String && ((String) content).startsWith("{")) {
+                JSONObject location = new JSONObject((String) content);
+                if (addAge(location, waited)) json.put("content", location.toString());
+            }
+            return json.toString();
+        } catch (JSONException e) { // e.g. a batch array, sent as it was queued
+            return message.body;
+        }
+    }
+
+    private static boolean addAge(JSONObject json, long waited) throws JSONException
+    {
+        if (!json.has("age")) return false;
+        json.put("age", json.getLong("age") + waited);
+        return true;
+    }
+
+    // Server errors and throttling are retried, other responses are final
+    static boolean isRetryable(int responseCode)
+    {
+        return responseCode >= 500 || responseCode == 408 || responseCode == 429;
+    }
+
+    private void load()
+    {
+        try {
+            String text = JsonFile.read(file);
+            if (text == null) return;
+            JSONArray array = new JSONArray(text);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                Message message = new Message();
+                message.id = json.getLong("id");
+                message.type = json.optString("type");
+                message.url = json.getString("url");
+                message.body = json.getString("body");
+                message.created = json.optLong("created");
+                message.attempts = json.optInt("attempts");
+                message.nextAttempt = json.optLong("nextAttempt");
+                message.headers = new LinkedHashMap<String, String>();
+                JSONObject headers = json.optJSONObject("headers");
+                JSONArray names = headers == null ? null : headers.names();
+                for (int j = 0; names != null && j < names.length(); j++)
+                    message.headers.put(names.getString(j), headers.getString(names.getString(j)));
+                messages.add(message);
+                nextId = Math.max(nextId, message.id + 1);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Outbox dropped, load failed", e);
+            messages.clear();
+        }
+    }
+
+    // Written to a temp file and renamed, a crash never leaves a half written outbox
+    private void save()
+    {
+        try {
+            JSONArray array = new JSONArray();
+            for (Message message : messages) {
+                JSONObject json = new JSONObject();
+                json.put("id", message.id);
+                json.put("type", message.type);
+                json.put("url", message.url);
+                json.put("headers", new JSONObject(message.headers));
+                json.put("body", message.body);
+                json.put("created", message.created);
+                json.put("attempts", message.attempts);
+                json.put("nextAttempt", message.nextAttempt);
+                array.put(json);
+            }
+            JsonFile.write(file, array.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Outbox save failed", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Outbox save failed", e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+/*
+ Flushes the Outbox when the network is available and the next retry is due. The job is
+ rescheduled as long as there are messages left.
+ */
+public class OutboxJobService extends JobService
+{
+    private static final String TAG = "OutboxJobService";
+    private static final int JOB_ID = 0x4c50; // LP
+
+    static void schedule(Context context, Outbox outbox)
+    {
+        long next = outbox.getNextAttempt();
+        if (next < 0) return;
+        long delay = Math.max(0, next - System.currentTimeMillis());
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, OutboxJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(delay)
+                .build();
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler != null) scheduler.schedule(job); // replaces the pending one
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params)
+    {
+        new Thread(new Runnable() {
+            public void run() {
+                Context context = getApplicationContext();
+                Outbox outbox = Outbox.open(context.getFilesDir());
+                try {
+                    boolean batch = LocationService.loadConfig(context).isBatch();
+                    outbox.flush(HttpClient.getInstance(), batch, System.currentTimeMillis());
+                } catch (Exception e) {
+                    Log.e(TAG, "Outbox flush exception ", e);
+                }
+                jobFinished(params, false);
+                schedule(context, outbox);
+            }
+        }, TAG).start();
+        return true; // flush continues in the thread
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params)
+    {
+        return false; // scheduled again after the flush anyway
+    }
+}
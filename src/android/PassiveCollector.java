@@ -0,0 +1,107 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.location.Location;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ Fixes of the passive provider, i.e. fixes other apps made the device compute, collected at no
+ extra power cost (config "passive", registered by LocationEngine). The newest MAX_FIXES are kept
+ in a ring in arrival order, so a lookup walks from the newest and stops at the first one older
+ than the max age (config "passiveMaxAge" sec). A location query in deep sleep or power save is
+ answered at once from the freshest fix which meets the accuracy, its age is the real age.
+ */
+class PassiveCollector
+{
+    private static final int MAX_FIXES = 64;
+    private static final Location[] fixes = new Location[MAX_FIXES];
+    private static int newest = -1;
+    private static int size = 0;
+    private static long maxAge = 300 * 1000L;
+    private static boolean enabled = false;
+    private static long collected = 0;
+    private static int hits = 0;
+    private static int misses = 0;
+
+    private PassiveCollector() {
+    }
+
+    static synchronized void setMaxAge(long ms)
+    {
+        maxAge = ms;
+    }
+
+    // Whether the passive provider is registered, disabling drops the collected fixes
+    static synchronized void setEnabled(boolean value)
+    {
+        enabled = value;
+        if (!enabled) clear();
+    }
+
+    // Called in the engine thread, an older fix than the newest one is ignored
+    static synchronized void put(Location location)
+    {
+        if (location == null) return;
+        if (size > 0 && location.getElapsedRealtimeNanos() <= fixes[newest].getElapsedRealtimeNanos()) return;
+        newest = (newest + 1) % MAX_FIXES;
+        fixes[newest] = location;
+        if (size < MAX_FIXES) size++;
+        collected++;
+    }
+
+    // Freshest fix which meets the accuracy and the max age, null = none. Not a miss when the
+    // collection is off.
+    static synchronized Location get(int accuracy)
+    {
+        if (!enabled) return null;
+        for (int i = 0; i < size; i++) {
+            Location location = fixes[(newest - i + MAX_FIXES) % MAX_FIXES];
+            if (LocationCache.getAge(location) > maxAge) break; // the rest are older
+            if (location.getAccuracy() <= accuracy) {
+                hits++;
+                return location;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    private static void clear()
+    {
+        for (int i = 0; i < MAX_FIXES; i++) fixes[i] = null;
+        newest = -1;
+        size = 0;
+    }
+
+    static synchronized JSONObject getStats() throws JSONException
+    {
+        JSONObject stats = new JSONObject();
+        stats.put("fixes", size);
+        stats.put("collected", collected);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("newestAgeMs", size > 0 ? LocationCache.getAge(fixes[newest]) : -1);
+        return stats;
+    }
+}
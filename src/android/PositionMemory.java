@@ -0,0 +1,67 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ Last POSITION posted to each team. A new fix within the distance and accuracy tolerance of it
+ is answered with an UNCHANGED reference instead. The remembered fix is only replaced by a full
+ POSITION, so small movements do not add up, and it expires after the max age.
+ */
+final class PositionMemory
+{
+    private static final double EARTH_RADIUS_M = 6371000.0;
+    private static final Map<String, Fix> positions = new HashMap<String, Fix>(); // key = team name
+
+    private PositionMemory() {
+    }
+
+    static synchronized void remember(String team, Fix fix)
+    {
+        positions.put(team, fix);
+    }
+
+    static synchronized Fix get(String team)
+    {
+        return positions.get(team);
+    }
+
+    // distance 0 = UNCHANGED is not used
+    static boolean isUnchanged(Fix previous, Fix fix, int distance, int accuracy, long maxAgeMs)
+    {
+        if (previous == null || distance <= 0) return false;
+        if (fix.time - previous.time > maxAgeMs) return false;
+        if (fix.accuracy > previous.accuracy + accuracy) return false;
+        return getDistance(previous, fix) <= distance;
+    }
+
+    // Haversine distance in meters
+    static double getDistance(Fix a, Fix b)
+    {
+        double dLat = Math.toRadians(b.latitude - a.latitude);
+        double dLon = Math.toRadians(b.longitude - a.longitude);
+        double h = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(a.latitude))
+                * Math.cos(Math.toRadians(b.latitude)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_M * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ Chooses the providers of a location request and when they are started. A plan is a list of
+ stages, every stage adds providers at its start time (ms from the request start) and the
+ update interval they are registered with. The request ends as before: an accurate fix, the
+ learned fallback point or the timeout.
+
+ accurate  GPS and network at once (the original behavior, default)
+ balanced  network first, GPS when the accuracy needs it or the network fix does not come,
+           later in deep sleep and power save, not at all when the budget is too short
+ lowPower  network only, GPS only when the network provider is disabled
+
+ Config "strategy" selects the strategy, a team may override it with its own "strategy".
+ */
+abstract class ProviderStrategy
+{
+    static final String ACCURATE = "accurate";
+    static final String BALANCED = "balanced";
+    static final String LOW_POWER = "lowPower";
+    // Network accuracy is typically 20 - 100 m indoors, coarser requests are network requests
+    private static final int NETWORK_ACCURACY = 100; // m
+    private static final long GPS_MIN_MS = 10000; // budget left for a GPS fix to be worth it
+    private static final long ESCALATE_MS = 5000;
+    private static final long LOW_POWER_GPS_INTERVAL_MS = 2000;
+
+    static final class Stage
+    {
+        final String name;
+        final long start; // ms from the request start
+        final boolean gps;
+        final boolean network;
+        final long interval; // ms, minTime of the registration
+
+        Stage(String name, long start, boolean gps, boolean network, long interval)
+        {
+            this.name = name;
+            this.start = start;
+            this.gps = gps;
+            this.network = network;
+            this.interval = interval;
+        }
+    }
+
+    private final String name;
+
+    private ProviderStrategy(String name)
+    {
+        this.name = name;
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    // At least one stage at start 0, at least one of the providers is enabled
+    abstract List<Stage> plan(int accuracy, long budget, boolean lowPower, boolean gpsEnabled, boolean networkEnabled);
+
+    static ProviderStrategy get(String name)
+    {
+        if (BALANCED.equals(name)) return balanced;
+        if (LOW_POWER.equals(name)) return lowPower;
+        return accurate;
+    }
+
+    private static List<Stage> single(String name, boolean gps, boolean network, long interval)
+    {
+        List<Stage> stages = new ArrayList<Stage>(1);
+        stages.add(new Stage(name, 0, gps, network, interval));
+        return stages;
+    }
+
+    private static final ProviderStrategy accurate = new ProviderStrategy(ACCURATE) {
+        List<Stage> plan(int accuracy, long budget, boolean lowPower, boolean gpsEnabled, boolean networkEnabled) {
+            return single("all", gpsEnabled, networkEnabled, 0);
+        }
+    };
+
+    private static final ProviderStrategy balanced = new ProviderStrategy(BALANCED) {
+        List<Stage> plan(int accuracy, long budget, boolean lowPower, boolean gpsEnabled, boolean networkEnabled) {
+            if (!networkEnabled) return single("gps", true, false, lowPower ? LOW_POWER_GPS_INTERVAL_MS : 0);
+            if (!gpsEnabled) return single("network", false, true, 0);
+            if (accuracy < NETWORK_ACCURACY && !lowPower) return single("all", true, true, 0);
+            // network first, GPS when a network fix did not meet the accuracy in time: soon for
+            // a fine accuracy in deep sleep or power save, after a third of the budget for a coarse one
+            long escalate = accuracy < NETWORK_ACCURACY ? Math.min(ESCALATE_MS, budget / 4) : budget / 3;
+            List<Stage> stages = single("network", false, true, 0);
+            if (budget - escalate >= GPS_MIN_MS)
+                stages.add(new Stage("escalated", escalate, true, true, lowPower ? LOW_POWER_GPS_INTERVAL_MS : 0));
+            return stages;
+        }
+    };
+
+    private static final ProviderStrategy lowPower = new ProviderStrategy(LOW_POWER) {
+        List<Stage> plan(int accuracy, long budget, boolean lowPower, boolean gpsEnabled, boolean networkEnabled) {
+            if (networkEnabled) return single("network", false, true, 0);
+            return single("gps", true, false, LOW_POWER_GPS_INTERVAL_MS);
+        }
+    };
+}
@@ -0,0 +1,121 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Runs independent queries concurrently on a small worker pool. Queries of the same team are
+ limited to teamLimit workers at a time, the rest wait in the team's own queue without
+ holding a worker, so a busy team can not starve the others.
+ */
+class QueryDispatcher
+{
+    private static final String TAG = "QueryDispatcher";
+    private final ThreadPoolExecutor executor;
+    private final Map<String, TeamQueue> teams = new HashMap<String, TeamQueue>();
+    private int teamLimit;
+
+    QueryDispatcher(int threads, int teamLimit)
+    {
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.teamLimit = Math.max(1, teamLimit);
+    }
+
+    synchronized void setTeamLimit(int teamLimit)
+    {
+        this.teamLimit = Math.max(1, teamLimit);
+    }
+
+    // Key null = no team limit (e.g. push token updates)
+    void dispatch(String key, Runnable task)
+    {
+        if (key == null) {
+            executor.execute(task);
+            return;
+        }
+        synchronized (this) {
+            TeamQueue queue = teams.get(key);
+            if (queue == null) {
+                queue = new TeamQueue();
+                teams.put(key, queue);
+            }
+            if (queue.running >= teamLimit) {
+                Log.d(TAG, "Team " + key + " busy, query queued");
+                queue.waiting.add(task);
+                return;
+            }
+            queue.running++;
+        }
+        executor.execute(new TeamTask(key, task));
+    }
+
+    private void finished(String key)
+    {
+        Runnable next;
+        synchronized (this) {
+            TeamQueue queue = teams.get(key);
+            next = queue.waiting.poll();
+            if (next == null) {
+                queue.running--;
+                if (queue.running == 0) teams.remove(key);
+                return;
+            }
+        }
+        executor.execute(new TeamTask(key, next)); // running count is passed to the next one
+    }
+
+    private static class TeamQueue
+    {
+        int running = 0;
+        final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+    }
+
+    private class TeamTask implements Runnable
+    {
+        private final String key;
+        private final Runnable task;
+
+        TeamTask(String key, Runnable task)
+        {
+            this.key = key;
+            this.task = task;
+        }
+
+        public void run()
+        {
+            try {
+                task.run();
+            } finally {
+                finished(key);
+            }
+        }
+    }
+}
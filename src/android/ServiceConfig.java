@@ -0,0 +1,337 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/*
+ Configuration compiled once from the JSON given in setConfiguration. The compiled instance is
+ immutable and shared by all service instances until a new configuration is installed.
+ */
+final class ServiceConfig
+{
+    private static ServiceConfig current = null;
+
+    private final String member;
+    private final String messageUrl;
+    private final String pushUrl;
+    private final String channelUrl; // "" = no persistent channel
+    private final int channelIdle;
+    private final String uuid;
+    private final String token;
+    private final int version;
+    private final int timeout;
+    private final int timeoutPercentile; // learned timeouts, 0 = off
+    private final String strategy; // ProviderStrategy, a team may override
+    private final boolean passive;
+    private final int passiveMaxAge;
+    private final int cacheMaxAge;
+    private final int teamConcurrency;
+    private final boolean batch; // server accepts a JSON array of messages
+    private final boolean progressive;
+    private final int progressInterval;
+    private final int wire;
+    private final int unchangedDistance; // m, 0 = always full POSITION
+    private final int unchangedAccuracy;
+    private final int unchangedMaxAge;
+    private final boolean motionHint;
+    private final Map<String, Team> teams; // key = teamId
+
+    static synchronized ServiceConfig getCurrent()
+    {
+        return current;
+    }
+
+    // Called by setConfiguration, replaces the compiled configuration
+    static synchronized void install(ServiceConfig config)
+    {
+        current = config;
+    }
+
+    // Called by the service after reading the stored configuration, a newer one wins
+    static synchronized ServiceConfig installIfAbsent(ServiceConfig config)
+    {
+        if (current == null) current = config;
+        return current;
+    }
+
+    static ServiceConfig compile(String jsonString) throws JSONException
+    {
+        return new ServiceConfig(new JSONObject(jsonString));
+    }
+
+    private ServiceConfig(JSONObject config) throws JSONException
+    {
+        member = config.optString("member", "");
+        messageUrl = config.optString("messageUrl", "");
+        pushUrl = config.optString("pushUrl", "");
+        channelUrl = config.optString("channelUrl", "");
+        channelIdle = config.optInt("channelIdle", 60);
+        uuid = config.optString("uuid", "");
+        token = config.optString("token", "");
+        version = config.optInt("version", 1609);
+        timeout = config.optInt("timeout", 60);
+        timeoutPercentile = config.optInt("timeoutPercentile", AcquisitionModel.DEFAULT_PERCENTILE);
+        strategy = config.optString("strategy", ProviderStrategy.ACCURATE);
+        passive = config.optBoolean("passive", false);
+        passiveMaxAge = config.optInt("passiveMaxAge", 300);
+        cacheMaxAge = config.optInt("cacheMaxAge", 0); // sec, 0 = every query gets a fresh fix
+        teamConcurrency = config.optInt("teamConcurrency", 2);
+        batch = config.optBoolean("batch", false);
+        progressive = config.optBoolean("progressive", false);
+        progressInterval = config.optInt("progressInterval", 2);
+        wire = config.optInt("wire", MessageWriter.WIRE_STRING);
+        unchangedDistance = config.optInt("unchangedDistance", 0);
+        unchangedAccuracy = config.optInt("unchangedAccuracy", 20);
+        unchangedMaxAge = config.optInt("unchangedMaxAge", 600);
+        motionHint = config.optBoolean("motionHint", false);
+        Map<String, Team> teamMap = new HashMap<String, Team>();
+        JSONObject teamsJson = config.optJSONObject("teams");
+        JSONObject cTeams = config.optJSONObject("cTeams");
+        JSONArray teamIds = teamsJson == null ? null : teamsJson.names();
+        if (teamIds != null) {
+            for (int i = 0; i < teamIds.length(); ++i) {
+                String teamId = teamIds.getString(i);
+                JSONObject team = teamsJson.optJSONObject(teamId);
+                if (team == null) continue;
+                String name = team.optString("name", "");
+                JSONObject cTeam = cTeams == null ? null : cTeams.optJSONObject(name);
+                teamMap.put(teamId, new Team(this, team, cTeam));
+            }
+        }
+        teams = Collections.unmodifiableMap(teamMap);
+    }
+
+    String getMember() { return member;}
+
+    int getChannelIdle() { return channelIdle;}
+
+    String getUuid() { return uuid;}
+
+    String getToken() { return token;}
+
+    int getVersion() { return version;}
+
+    int getTimeout() { return timeout;}
+
+    int getTimeoutPercentile() { return timeoutPercentile;}
+
+    String getStrategy() { return strategy;}
+
+    boolean isPassive() { return passive;}
+
+    int getPassiveMaxAge() { return passiveMaxAge;}
+
+    int getCacheMaxAge() { return cacheMaxAge;}
+
+    int getTeamConcurrency() { return teamConcurrency;}
+
+    boolean isBatch() { return batch;}
+
+    boolean isProgressive() { return progressive;}
+
+    int getProgressInterval() { return progressInterval;}
+
+    int getWire() { return wire;}
+
+    int getUnchangedDistance() { return unchangedDistance;}
+
+    int getUnchangedAccuracy() { return unchangedAccuracy;}
+
+    int getUnchangedMaxAge() { return unchangedMaxAge;}
+
+    boolean isMotionHint() { return motionHint;}
+
+    Team getTeam(String teamId)
+    {
+        return teamId == null ? null : teams.get(teamId);
+    }
+
+    Collection<Team> getTeams()
+    {
+        return teams.values();
+    }
+
+    static final class Team
+    {
+        private final String name;
+        private final String password;
+        private final String member;
+        private final String host;
+        private final String secret;
+        private final String messageUrl;
+        private final String pushUrl;
+        private final String icon;
+        private final String trackerOff;
+        private final String strategy;
+        private final Schedule schedule;
+
+        private Team(ServiceConfig config, JSONObject team, JSONObject cTeam)
+        {
+            name = team.optString("name", "");
+            password = team.optString("password", "");
+            member = team.optString("member", config.member);
+            host = team.optString("host", "");
+            secret = team.optString("s");
+            messageUrl = config.messageUrl.replace("{host}", host);
+            pushUrl = config.pushUrl.replace("{host}", host);
+            strategy = team.optString("strategy", config.strategy);
+            if (cTeam != null) {
+                icon = cTeam.optString("icon", null);
+                trackerOff = cTeam.optString("trackerOff", null);
+                schedule = Schedule.compile(cTeam);
+            } else {
+                icon = null;
+                trackerOff = null;
+                schedule = null;
+            }
+        }
+
+        String getName() { return name;}
+
+        String getHost() { return host;}
+
+        String getPassword() { return password;}
+
+        String getMember() { return member;}
+
+        String getSecret() { return secret;}
+
+        String getIcon() { return icon;}
+
+        String getTrackerOff() { return trackerOff;}
+
+        String getStrategy() { return strategy;}
+
+        // The query may override the team host
+        String getMessageUrl(ServiceConfig config, String queryHost)
+        {
+            if (queryHost == null || queryHost.equals(host)) return messageUrl;
+            return config.messageUrl.replace("{host}", queryHost);
+        }
+
+        String getPushUrl(ServiceConfig config, String queryHost)
+        {
+            if (queryHost == null || queryHost.equals(host)) return pushUrl;
+            return config.pushUrl.replace("{host}", queryHost);
+        }
+
+        // null = no persistent channel
+        String getChannelUrl(ServiceConfig config, String queryHost)
+        {
+            if (config.channelUrl.isEmpty()) return null;
+            return config.channelUrl.replace("{host}", queryHost != null ? queryHost : host);
+        }
+
+        boolean isBlocked(long now)
+        {
+            return schedule != null && schedule.isBlocked(now);
+        }
+    }
+
+    /*
+     Location sharing schedule of a team. The date range is checked against the epoch time and
+     the weekly repeat rule is precomputed into a bitmap of allowed minutes of the week.
+     */
+    static final class Schedule
+    {
+        private static final int DAY_MINUTES = 1440;
+        private static final int WEEK_MINUTES = 7 * DAY_MINUTES;
+        private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+        private final long start; // epoch ms, 0 = not set
+        private final long end;
+        private final long[] allowed; // null = no weekly repeat rule
+
+        private Schedule(long start, long end, long[] allowed)
+        {
+            this.start = start;
+            this.end = end;
+            this.allowed = allowed;
+        }
+
+        static Schedule compile(JSONObject cTeam)
+        {
+            long startDate = cTeam.optLong("startDate", 0); // epoch
+            long endDate = cTeam.optLong("endDate", 0);
+            int startTime = cTeam.optInt("startTime", 0); // total minutes from day start
+            int endTime = cTeam.optInt("endTime", 0);
+            String repeat = cTeam.optString("repeat", ""); // weekdays 0-6
+            if (startDate <= 0 && endDate <= 0 && repeat.isEmpty())
+                return null;
+            long start = startDate > 0 ? startDate + (startTime * 60 * 1000) : 0;
+            long end = endDate > 0 ? endDate + (endTime * 60 * 1000) : 0;
+            long[] allowed = null;
+            if (!repeat.isEmpty()) {
+                allowed = new long[(WEEK_MINUTES + 63) / 64];
+                for (int day = 0; day < 7; day++) {
+                    for (int minute = 0; minute < DAY_MINUTES; minute++) {
+                        if (isAllowedByRepeat(day, minute, startTime, endTime, repeat)) {
+                            int index = day * DAY_MINUTES + minute;
+                            allowed[index >> 6] |= 1L << (index & 63);
+                        }
+                    }
+                }
+            }
+            return new Schedule(start, end, allowed);
+        }
+
+        // The weekly rule as it was evaluated on each query before the bitmap
+        private static boolean isAllowedByRepeat(int day, int nowInMinutes, int startTime, int endTime, String repeat)
+        {
+            if(startTime == 0 && endTime == 0) endTime = 1440; // hole day if not set
+            int index = repeat.indexOf(Integer.toString(day));
+            if (startTime > endTime && index == -1) { // check also previous day
+                int prevDay = day - 1;
+                if (prevDay == -1) prevDay = 6;
+                index = repeat.indexOf(Integer.toString(prevDay));
+            }
+            if (index == -1)
+                return false;
+            if (startTime < endTime)
+                return !(nowInMinutes < startTime || nowInMinutes > endTime);
+            else
+                return !(nowInMinutes < startTime && nowInMinutes > endTime);
+        }
+
+        boolean isBlocked(long now)
+        {
+            if (start > 0 && now < start)
+                return true;
+            if (end > 0 && now > end)
+                return true;
+            if (allowed == null)
+                return false;
+            long local = now + TimeZone.getDefault().getOffset(now);
+            long days = local / DAY_MS;
+            int dayOfWeek = (int) ((days + 4) % 7); // 1.1.1970 was Thursday, Sunday = 0
+            int index = dayOfWeek * DAY_MINUTES + (int) ((local % DAY_MS) / 60000);
+            return (allowed[index >> 6] & (1L << (index & 63))) == 0;
+        }
+    }
+}
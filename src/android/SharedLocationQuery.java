@@ -0,0 +1,145 @@
+/*
+ Author: Toni Korin
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+package com.tonikorin.cordova.plugin.LocationProvider;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ One in-flight MyLocation fix shared by simultaneous queries. A new query joins a running fix
+ when the running one asks for the same or better accuracy with the same provider strategy, or
+ with the accurate strategy which uses all providers from the start. Otherwise a new fix is started.
+ */
+class SharedLocationQuery extends MyLocation.LocationResult
+{
+    private static final String TAG = "SharedLocationQuery";
+    private static final List<SharedLocationQuery> inFlight = new ArrayList<SharedLocationQuery>();
+    private final int accuracy;
+    private final String strategy;
+    private final List<MyLocation.LocationResult> subscribers = new ArrayList<MyLocation.LocationResult>();
+    private boolean deepSleep = false;
+    private boolean powerSave = false;
+
+    private SharedLocationQuery(int accuracy, String strategy)
+    {
+        this.accuracy = accuracy;
+        this.strategy = strategy;
+    }
+
+    // maxAge (ms) > 0 allows answering from the LocationCache without a new location query
+    // The strategy (ProviderStrategy) is used when a new fix is started
+    static void request(Context context, MyLocation.LocationResult result, int accuracy, int timeout, long maxAge, String strategy)
+    {
+        Location cached = LocationCache.get(accuracy, maxAge);
+        if (cached != null) {
+            Log.d(TAG, "Location from cache, age " + LocationCache.getAge(cached) + " ms");
+            result.setPath("cache");
+            result.gotLocation(cached);
+            return;
+        }
+        strategy = ProviderStrategy.get(strategy).getName();
+        SharedLocationQuery query;
+        synchronized (inFlight) {
+            for (SharedLocationQuery running : inFlight) {
+                if (running.accuracy <= accuracy && running.covers(strategy)) {
+                    Log.d(TAG, "Joined in-flight location query, accuracy " + running.accuracy + " " + running.strategy);
+                    running.subscribe(result);
+                    return;
+                }
+            }
+            query = new SharedLocationQuery(accuracy, strategy);
+            query.subscribe(result);
+            inFlight.add(query);
+        }
+        new MyLocation(context, query, accuracy, timeout, strategy).start();
+    }
+
+    // A lowPower or balanced fix may never start GPS, it does not answer an accurate query
+    private boolean covers(String requested)
+    {
+        return strategy.equals(requested) || ProviderStrategy.ACCURATE.equals(strategy);
+    }
+
+    // Called with inFlight lock held
+    private void subscribe(MyLocation.LocationResult result)
+    {
+        subscribers.add(result);
+        if (deepSleep) result.setInDeepSleepTrue();
+        if (powerSave) result.setPowerSaveTrue();
+    }
+
+    private List<MyLocation.LocationResult> getSubscribers()
+    {
+        synchronized (inFlight) {
+            return new ArrayList<MyLocation.LocationResult>(subscribers);
+        }
+    }
+
+    @Override
+    public void gotLocation(Location location)
+    {
+        List<MyLocation.LocationResult> results;
+        synchronized (inFlight) {
+            inFlight.remove(this);
+            results = new ArrayList<MyLocation.LocationResult>(subscribers);
+        }
+        for (MyLocation.LocationResult result : results)
+            result.gotLocation(location);
+    }
+
+    @Override
+    public void setPath(String path)
+    {
+        for (MyLocation.LocationResult result : getSubscribers())
+            result.setPath(path);
+    }
+
+    @Override
+    public void gotProgress(Location location)
+    {
+        for (MyLocation.LocationResult result : getSubscribers())
+            result.gotProgress(location);
+    }
+
+    @Override
+    public void setInDeepSleepTrue()
+    {
+        synchronized (inFlight) {
+            deepSleep = true;
+        }
+        for (MyLocation.LocationResult result : getSubscribers())
+            result.setInDeepSleepTrue();
+    }
+
+    @Override
+    public void setPowerSaveTrue()
+    {
+        synchronized (inFlight) {
+            powerSave = true;
+        }
+        for (MyLocation.LocationResult result : getSubscribers())
+            result.setPowerSaveTrue();
+    }
+}
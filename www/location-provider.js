@@ -31,11 +31,63 @@ exports.getAndClearHistory = function (successCallback) {
     cordova.exec(successCallback, null, 'LocationProviderPlugin', 'getAndClearHistory', []);
 };
 
+/* Fetch Locate and chat history entries newer than the cursor, max limit entries per page */
+exports.getHistorySince = function (cursor, limit, successCallback) {
+    cordova.exec(successCallback, null, 'LocationProviderPlugin', 'getHistorySince', [cursor, limit]);
+};
+
+/* Clear history entries up to the cursor */
+exports.ackHistory = function (cursor, successCallback) {
+    cordova.exec(successCallback, null, 'LocationProviderPlugin', 'ackHistory', [cursor]);
+};
+
 /* To get own position to replace Geolocation API call */
 exports.getOwnPosition = function (params, successCallback, errorCallback) {
     cordova.exec(successCallback, errorCallback, 'LocationProviderPlugin', 'getOwnPosition', [params]);
 };
 
+/* Streams own position fixes to successCallback until clearWatch, returns the watch id */
+var watchCount = 0;
+exports.watchOwnPosition = function (params, successCallback, errorCallback) {
+    var watchId = 'watch' + (++watchCount);
+    cordova.exec(successCallback, errorCallback, 'LocationProviderPlugin', 'watchOwnPosition', [watchId, params]);
+    return watchId;
+};
+
+exports.clearWatch = function (watchId, successCallback) {
+    cordova.exec(successCallback, null, 'LocationProviderPlugin', 'clearWatch', [watchId]);
+};
+
+/* Connection pool statistics of the message and push server hosts */
+exports.getConnectionStats = function (successCallback) {
+    cordova.exec(successCallback, null, 'LocationProviderPlugin', 'getConnectionStats', []);
+};
+
+/* Hit and miss counters of the recent location cache */
+exports.getLocationCacheStats = function (successCallback) {
+    cordova.exec(successCallback, null, 'LocationProviderPlugin', 'getLocationCacheStats', []);
+};
+
+/* Query latency histograms and counters of the last 24 hours, with connection and cache statistics */
+exports.getMetrics = function (successCallback) {
+    cordova.exec(successCallback, null, 'LocationProviderPlugin', 'getMetrics', []);
+};
+
+/* Clear the metrics */
+exports.resetMetrics = function (successCallback) {
+    cordova.exec(successCallback, null, 'LocationProviderPlugin', 'resetMetrics', []);
+};
+
+/* Start tracking of the team, options: interval (sec), distance (m), flushInterval (sec) */
+exports.startTracking = function (teamId, options, successCallback, errorCallback) {
+    cordova.exec(successCallback, errorCallback, 'LocationProviderPlugin', 'startTracking', [teamId, options]);
+};
+
+/* Stop tracking of the team, buffered fixes are uploaded */
+exports.stopTracking = function (teamId, successCallback, errorCallback) {
+    cordova.exec(successCallback, errorCallback, 'LocationProviderPlugin', 'stopTracking', [teamId]);
+};
+
 exports.startService = function (notification) { // testing purpose
     cordova.exec(null, null, 'LocationProviderPlugin', 'startService', [notification]);
 };